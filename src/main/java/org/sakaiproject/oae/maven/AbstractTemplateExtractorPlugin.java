@@ -20,10 +20,13 @@ package org.sakaiproject.oae.maven;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.sakaiproject.vtlgen.PackageCache;
 import org.sakaiproject.vtlgen.PackageRunner;
-import org.sakaiproject.vtlgen.api.Runner;
+import org.sakaiproject.vtlgen.VelocityFileProcessor;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,7 +39,13 @@ public abstract class AbstractTemplateExtractorPlugin extends AbstractMojo {
 
   public static final String PROP_HELP = "help";
   
-  private static final Runner<String> runner = new PackageRunner();
+  /**
+   * The local repository of the build, in which mvn: packages are found.
+   * 
+   * @parameter expression="${settings.localRepository}"
+   * @readonly
+   */
+  private String localRepository;
   
   /**
    * {@inheritDoc}
@@ -44,19 +53,48 @@ public abstract class AbstractTemplateExtractorPlugin extends AbstractMojo {
    */
   public final void execute() throws MojoExecutionException, MojoFailureException {
     Map<String, Object> allProps = buildAllAvailablePluginProperties();
-    if ("true".equals(allProps.get(PROP_HELP))) {
-      getLog().info("");
-      getLog().info("");
-      printHelp();
-      getLog().info("");
-      getLog().info("");
-      return;
+    Map<String, Object> ctx = null;
+    try {
+      if ("true".equals(allProps.get(PROP_HELP))) {
+        getLog().info("");
+        getLog().info("");
+        printHelp();
+        getLog().info("");
+        getLog().info("");
+        return;
+      }
+      
+      List<ConfigurationProperty> configProps = getConfigurationProperties();
+      ctx = buildContextProperties(configProps, allProps);
+      validate(configProps, ctx);
+    } catch (RuntimeException e) {
+      // the configuration given by the user is wrong, e.g. a property is missing
+      throw new MojoFailureException(e.getMessage());
     }
     
-    List<ConfigurationProperty> configProps = getConfigurationProperties();
-    Map<String, Object> ctx = buildContextProperties(configProps, allProps);
-    validate(configProps, ctx);
-    runner.run(getPackageUrl(), new File(getTargetDir()), ctx);
+    PackageCache cache = PackageCache.fromProperties(allProps);
+    Object renderCacheDir = allProps.get(VelocityFileProcessor.PROP_RENDER_CACHE_DIR);
+    PackageRunner runner = new PackageRunner(ResourceLimits.fromProperties(allProps), cache,
+        (renderCacheDir == null) ? null : new File(renderCacheDir.toString()),
+        PackageRunner.getLocalMavenRepository(allProps));
+    String packageUrl = getPackageUrl();
+    File targetDir = new File(getTargetDir());
+    ScaffoldFingerprint fingerprint = new ScaffoldFingerprint(new File(cache.getDirectory(),
+        "fingerprints"), packageUrl, targetDir);
+    try {
+      String inputs = ScaffoldFingerprint.hashInputs(runner.digest(packageUrl), ctx);
+      if (fingerprint.isUpToDate(inputs)) {
+        getLog().info("The scaffold in " + targetDir + " is up to date.");
+        return;
+      }
+      
+      List<File> generated = runner.generate(packageUrl, targetDir, ctx);
+      fingerprint.store(inputs, generated);
+    } catch (IOException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    } catch (RuntimeException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    }
   }
 
   /**
@@ -64,6 +102,13 @@ public abstract class AbstractTemplateExtractorPlugin extends AbstractMojo {
    * addition to recognized Java URL protocols, this also supports classpath: protocol, where a
    * classpath resource may be included, such as:
    * {@code classpath:/org/sakaiproject/oae/maven/templates/osgi-simple.tar}
+   * <p>
+   * A package artifact in the local Maven repository may be used with
+   * {@code mvn:groupId:artifactId:version[:type[:classifier]]}, where the type defaults to tar.
+   * Packages with a zip or jar type or extension are read as zip archives.
+   * <p>
+   * The expected SHA-256 of the package may be declared by appending a {@code #sha256=<hex>}
+   * fragment, otherwise a {@code .sha256} sidecar next to the package is used if present.
    */
   public abstract String getPackageUrl();
   
@@ -154,7 +199,7 @@ public abstract class AbstractTemplateExtractorPlugin extends AbstractMojo {
    * @return The aggregated list of all properties that are available for the context. These
    * are to be filtered out according to the list of properties required.
    */
-  private Map<String, Object> buildAllAvailablePluginProperties() {
+  protected Map<String, Object> buildAllAvailablePluginProperties() {
     Map<String, Object> result = new HashMap<String, Object>();
     
     for (Object keyObj : System.getProperties().keySet()) {
@@ -166,6 +211,10 @@ public abstract class AbstractTemplateExtractorPlugin extends AbstractMojo {
       result.put(keyObj.toString(), getPluginContext().get(keyObj).toString());
     }
     
+    if (localRepository != null) {
+      result.put(PackageRunner.PROP_LOCAL_REPOSITORY, localRepository);
+    }
+    
     return result;
   }
   
@@ -0,0 +1,711 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.vtlgen.FilesystemDirectoryRunner;
+import org.sakaiproject.vtlgen.PackageCache;
+import org.sakaiproject.vtlgen.PackageRunner;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The catalog of the template packages that are available locally: those bundled with the
+ * plugin, those in the directories listed in {@value #PROP_DIRS}, and those in the local
+ * Maven repository.
+ * <p>
+ * Only part of the Maven repository is looked at: the groups listed in {@value #PROP_GROUPS},
+ * which is {@value #DEFAULT_GROUPS} and its sub-groups by default, and in them only the tar
+ * and zip artifacts with the {@value #MAVEN_CLASSIFIER} classifier, e.g.
+ * {@code widget-1.2-vtlg.tar}. Other artifacts are never read.
+ * <p>
+ * A package describes itself with a {@value FilesystemDirectoryRunner#METADATA_FILENAME}
+ * properties file at the root of the archive:
+ * 
+ * <pre>
+ * name=osgi-empty
+ * version=1.0
+ * description=A bare-bones OSGi bundle
+ * properties=groupId,artifactId
+ * property.groupId.default=org.sakaiproject
+ * property.artifactId.description=The artifactId of the bundle
+ * </pre>
+ * 
+ * Properties without a default are required. Packages in the Maven repository are only
+ * listed if they have this file; elsewhere, a package without it is named after its file.
+ * <p>
+ * What is known about each package is kept in an index, along with the size and modification
+ * time of the package. A package is only read again when those change, so listing the
+ * catalog does not read any packages unless they were added or changed since the last time.
+ * A package that cannot be read is indexed as such, and left out until it changes.
+ */
+public class PackageCatalog {
+
+  public static final String PROP_DIRS = "vtlg.catalogDirs";
+  public static final String PROP_GROUPS = "vtlg.catalogGroups";
+  public static final String DEFAULT_GROUPS = "org.sakaiproject";
+  public static final String MAVEN_CLASSIFIER = "vtlg";
+  
+  private static final Logger LOGGER = LoggerFactory.getLogger(PackageCatalog.class);
+  private static final String INDEX_FILENAME = "catalog.index";
+  private static final String CLASSPATH_TEMPLATES = "/org/sakaiproject/oae/maven/templates";
+  private static final String CLASSPATH_PREFIX = "classpath:";
+  private static final String INDEX_PREFIX = "package.";
+  
+  private final File indexFile;
+  private final List<File> dirs;
+  private final File mavenRepository;
+  private final List<String> mavenGroups;
+  
+  /**
+   * @param indexFile The file in which the index is kept
+   * @param dirs The local directories in which packages are looked for
+   * @param mavenRepository The local Maven repository, or {@code null} not to look in one
+   */
+  public PackageCatalog(File indexFile, List<File> dirs, File mavenRepository) {
+    this(indexFile, dirs, mavenRepository, split(DEFAULT_GROUPS));
+  }
+  
+  /**
+   * @param indexFile The file in which the index is kept
+   * @param dirs The local directories in which packages are looked for
+   * @param mavenRepository The local Maven repository, or {@code null} not to look in one
+   * @param mavenGroups The groups of the Maven repository in which packages are looked for,
+   * with their sub-groups
+   */
+  public PackageCatalog(File indexFile, List<File> dirs, File mavenRepository,
+      List<String> mavenGroups) {
+    this.indexFile = indexFile;
+    this.dirs = dirs;
+    this.mavenRepository = mavenRepository;
+    this.mavenGroups = mavenGroups;
+  }
+  
+  /**
+   * Create the catalog of the directories in the comma-separated {@value #PROP_DIRS}
+   * property and the groups of the local Maven repository in the comma-separated
+   * {@value #PROP_GROUPS} property, indexed in the package cache directory.
+   * 
+   * @param props
+   * @return
+   */
+  public static PackageCatalog fromProperties(Map<String, Object> props) {
+    List<File> dirs = new ArrayList<File>();
+    Object dirsProp = (props == null) ? null : props.get(PROP_DIRS);
+    if (dirsProp != null) {
+      for (String dir : split(dirsProp.toString())) {
+        dirs.add(new File(dir));
+      }
+    }
+    Object groupsProp = (props == null) ? null : props.get(PROP_GROUPS);
+    return new PackageCatalog(new File(PackageCache.fromProperties(props).getDirectory(),
+        INDEX_FILENAME), dirs, PackageRunner.getLocalMavenRepository(props),
+        split((groupsProp == null) ? DEFAULT_GROUPS : groupsProp.toString()));
+  }
+  
+  /**
+   * @param list
+   * @return The non-empty, trimmed items of the comma-separated list.
+   */
+  private static List<String> split(String list) {
+    List<String> result = new ArrayList<String>();
+    for (String item : list.split(",")) {
+      if (item.trim().length() > 0) {
+        result.add(item.trim());
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Bring the index up to date with the packages that are available, and list them.
+   * 
+   * @return The packages, ordered by name and version.
+   * @throws IOException If the index could not be written
+   */
+  public List<Entry> list() throws IOException {
+    Map<String, Entry> indexed = load();
+    List<Entry> current = new ArrayList<Entry>();
+    boolean changed = false;
+    
+    for (Candidate candidate : findCandidates()) {
+      Entry entry = indexed.remove(candidate.url);
+      if (entry == null || entry.size != candidate.size
+          || entry.lastModified != candidate.lastModified) {
+        entry = read(candidate);
+        changed = true;
+      }
+      current.add(entry);
+    }
+    
+    if (changed || !indexed.isEmpty()) {
+      store(current);
+    }
+    
+    List<Entry> result = new ArrayList<Entry>();
+    for (Entry entry : current) {
+      if (!entry.failed && (entry.described || !entry.url.startsWith(MavenCandidate.PREFIX))) {
+        result.add(entry);
+      }
+    }
+    Collections.sort(result, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        int byName = a.name.compareTo(b.name);
+        return (byName != 0) ? byName : compareVersions(a.version, b.version);
+      }
+    });
+    return result;
+  }
+  
+  /**
+   * Find a package by name, and optionally version.
+   * 
+   * @param name The name of the package, or {@code name:version}
+   * @return The package, which is the latest version if none was given, or {@code null} if
+   * there is no such package.
+   * @throws IOException
+   */
+  public Entry find(String name) throws IOException {
+    int colon = name.indexOf(':');
+    String version = (colon == -1) ? null : name.substring(colon + 1);
+    String packageName = (colon == -1) ? name : name.substring(0, colon);
+    Entry found = null;
+    for (Entry entry : list()) {
+      if (entry.name.equals(packageName) && (version == null || version.equals(entry.version))) {
+        found = entry;
+      }
+    }
+    return found;
+  }
+  
+  /**
+   * Compare versions by their dot or dash separated parts, numerically where both parts are
+   * numbers.
+   * 
+   * @param a
+   * @param b
+   * @return
+   */
+  static int compareVersions(String a, String b) {
+    String[] as = a.split("[.-]");
+    String[] bs = b.split("[.-]");
+    for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+      int result;
+      if (as[i].matches("\\d{1,18}") && bs[i].matches("\\d{1,18}")) {
+        result = Long.valueOf(as[i]).compareTo(Long.valueOf(bs[i]));
+      } else {
+        result = as[i].compareTo(bs[i]);
+      }
+      if (result != 0) {
+        return result;
+      }
+    }
+    return as.length - bs.length;
+  }
+  
+  /**
+   * @return The packages available now, with the size and modification time of each.
+   * @throws IOException
+   */
+  private List<Candidate> findCandidates() throws IOException {
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    findClasspathCandidates(candidates);
+    for (File dir : dirs) {
+      findFileCandidates(dir, candidates);
+    }
+    if (mavenRepository != null) {
+      for (String group : new LinkedHashSet<String>(mavenGroups)) {
+        if (!isSubGroup(group)) {
+          findMavenCandidates(mavenRepository, new File(mavenRepository,
+              group.replace('.', File.separatorChar)), candidates);
+        }
+      }
+    }
+    return candidates;
+  }
+  
+  private void findClasspathCandidates(List<Candidate> candidates) throws IOException {
+    URL templates = getClass().getResource(CLASSPATH_TEMPLATES);
+    if (templates == null) {
+      return;
+    }
+    
+    if ("file".equals(templates.getProtocol())) {
+      File dir = FileUtils.toFile(templates);
+      File[] files = dir.listFiles();
+      for (int i = 0; files != null && i < files.length; i++) {
+        if (isPackageFile(files[i].getName())) {
+          candidates.add(new Candidate(CLASSPATH_PREFIX + CLASSPATH_TEMPLATES + "/"
+              + files[i].getName(), files[i].getName(), files[i].length(),
+              files[i].lastModified()));
+        }
+      }
+    } else if ("jar".equals(templates.getProtocol())) {
+      JarURLConnection connection = (JarURLConnection) templates.openConnection();
+      connection.setUseCaches(false);
+      JarFile jar = connection.getJarFile();
+      try {
+        String prefix = CLASSPATH_TEMPLATES.substring(1) + "/";
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+          JarEntry entry = entries.nextElement();
+          String entryName = entry.getName();
+          if (entryName.startsWith(prefix) && entryName.indexOf('/', prefix.length()) == -1
+              && isPackageFile(entryName)) {
+            candidates.add(new Candidate(CLASSPATH_PREFIX + "/" + entryName,
+                entryName.substring(prefix.length()), entry.getSize(), entry.getTime()));
+          }
+        }
+      } finally {
+        jar.close();
+      }
+    }
+  }
+  
+  private void findFileCandidates(File dir, List<Candidate> candidates) throws IOException {
+    File[] files = dir.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      File file = files[i];
+      if (file.isDirectory()) {
+        findFileCandidates(file, candidates);
+      } else if (isPackageFile(file.getName())) {
+        candidates.add(new Candidate(file.toURI().toURL().toString(), file.getName(),
+            file.length(), file.lastModified()));
+      }
+    }
+  }
+  
+  /**
+   * @param group
+   * @return Whether or not the given group is a sub-group of another of the catalog groups,
+   * in which case it is already looked at.
+   */
+  private boolean isSubGroup(String group) {
+    for (String other : mavenGroups) {
+      if (group.startsWith(other + ".")) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Find the tar and zip artifacts with the {@value #MAVEN_CLASSIFIER} classifier in the given
+   * directory of the Maven repository, which are laid out as
+   * {@code group/path/artifactId/version/artifactId-version-vtlg.type}.
+   */
+  private void findMavenCandidates(File repository, File dir, List<Candidate> candidates) {
+    File[] files = dir.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      File file = files[i];
+      String lower = file.getName().toLowerCase();
+      if (file.isDirectory()) {
+        findMavenCandidates(repository, file, candidates);
+      } else if (lower.endsWith("-" + MAVEN_CLASSIFIER + ".tar")
+          || lower.endsWith("-" + MAVEN_CLASSIFIER + ".zip")) {
+        Candidate candidate = MavenCandidate.create(repository, file);
+        if (candidate != null) {
+          candidates.add(candidate);
+        }
+      }
+    }
+  }
+  
+  private boolean isPackageFile(String name) {
+    String lower = name.toLowerCase();
+    return lower.endsWith(".tar") || lower.endsWith(".zip") || lower.endsWith(".jar");
+  }
+  
+  /**
+   * Read the digest and the metadata of a package.
+   * 
+   * @param candidate
+   * @return The package, which is marked as failed if it could not be read.
+   */
+  private Entry read(Candidate candidate) {
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = null;
+    Properties metadata = null;
+    try {
+      is = new DigestInputStream(new BufferedInputStream(open(candidate.url)), md);
+      metadata = candidate.fileName.toLowerCase().endsWith(".tar") ? readTarMetadata(is)
+          : readZipMetadata(is);
+      IOUtils.skip(is, Long.MAX_VALUE);
+    } catch (IOException e) {
+      LOGGER.warn("Could not read the package {}, it is left out of the catalog until it "
+          + "changes: {}", candidate.url, e.getMessage());
+      return new Entry(candidate.url, null, candidate.size, candidate.lastModified, false, true);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    
+    Entry entry = new Entry(candidate.url, PackageUtil.toHex(md.digest()), candidate.size,
+        candidate.lastModified, metadata != null, false);
+    if (metadata == null) {
+      metadata = new Properties();
+    }
+    entry.name = metadata.getProperty("name", candidate.getDefaultName());
+    entry.version = metadata.getProperty("version", candidate.getDefaultVersion());
+    entry.description = metadata.getProperty("description");
+    entry.properties = readProperties(metadata, "");
+    return entry;
+  }
+  
+  private InputStream open(String url) throws IOException {
+    if (url.startsWith(CLASSPATH_PREFIX)) {
+      InputStream is = getClass().getResourceAsStream(url.substring(CLASSPATH_PREFIX.length()));
+      if (is == null) {
+        throw new IOException("Could not find the classpath resource: " + url);
+      }
+      return is;
+    } else if (url.startsWith(MavenCandidate.PREFIX)) {
+      return new FileInputStream(MavenCandidate.toFile(mavenRepository, url));
+    }
+    return new URL(url).openStream();
+  }
+  
+  private Properties readTarMetadata(InputStream is) throws IOException {
+    TarArchiveInputStream tis = new TarArchiveInputStream(is);
+    TarArchiveEntry entry = null;
+    while ((entry = tis.getNextTarEntry()) != null) {
+      if (isMetadataEntry(entry.getName())) {
+        return loadProperties(tis);
+      }
+    }
+    return null;
+  }
+  
+  private Properties readZipMetadata(InputStream is) throws IOException {
+    ZipInputStream zis = new ZipInputStream(is);
+    ZipEntry entry = null;
+    while ((entry = zis.getNextEntry()) != null) {
+      if (isMetadataEntry(entry.getName())) {
+        return loadProperties(zis);
+      }
+    }
+    return null;
+  }
+  
+  private boolean isMetadataEntry(String entryName) {
+    return entryName.equals(FilesystemDirectoryRunner.METADATA_FILENAME)
+        || entryName.equals("./" + FilesystemDirectoryRunner.METADATA_FILENAME);
+  }
+  
+  private Properties loadProperties(InputStream is) throws IOException {
+    // the archive stream must stay open, so it is read into memory first
+    Properties props = new Properties();
+    props.load(new ByteArrayInputStream(IOUtils.toByteArray(is)));
+    return props;
+  }
+  
+  /**
+   * @param props
+   * @param prefix
+   * @return The configuration properties declared with the given prefix, or {@code null} if
+   * none are declared.
+   */
+  private static List<ConfigurationProperty> readProperties(Properties props, String prefix) {
+    String keys = props.getProperty(prefix + "properties");
+    if (keys == null) {
+      return null;
+    }
+    
+    List<ConfigurationProperty> result = new ArrayList<ConfigurationProperty>();
+    for (String key : keys.split(",")) {
+      key = key.trim();
+      if (key.length() > 0) {
+        result.add(new ConfigurationProperty(key,
+            props.getProperty(prefix + "property." + key + ".description"),
+            props.getProperty(prefix + "property." + key + ".default")));
+      }
+    }
+    return result;
+  }
+  
+  private Map<String, Entry> load() {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    if (!indexFile.isFile()) {
+      return entries;
+    }
+    
+    Properties index = new Properties();
+    InputStream is = null;
+    try {
+      is = new FileInputStream(indexFile);
+      index.load(is);
+    } catch (IOException e) {
+      // the index is rebuilt
+      return entries;
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    
+    try {
+      for (int i = 0; index.getProperty(INDEX_PREFIX + i + ".url") != null; i++) {
+        String prefix = INDEX_PREFIX + i + ".";
+        Entry entry = new Entry(index.getProperty(prefix + "url"),
+            index.getProperty(prefix + "digest"), Long.parseLong(index.getProperty(prefix + "size")),
+            Long.parseLong(index.getProperty(prefix + "lastModified")),
+            Boolean.valueOf(index.getProperty(prefix + "described")),
+            Boolean.valueOf(index.getProperty(prefix + "failed")));
+        entries.put(entry.url, entry);
+        if (entry.failed) {
+          continue;
+        }
+        entry.name = index.getProperty(prefix + "name");
+        entry.version = index.getProperty(prefix + "version");
+        entry.description = index.getProperty(prefix + "description");
+        entry.properties = readProperties(index, prefix);
+      }
+    } catch (RuntimeException e) {
+      // the index is rebuilt
+      entries.clear();
+    }
+    return entries;
+  }
+  
+  private void store(List<Entry> entries) throws IOException {
+    Properties index = new Properties();
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      String prefix = INDEX_PREFIX + i + ".";
+      index.setProperty(prefix + "url", entry.url);
+      index.setProperty(prefix + "size", String.valueOf(entry.size));
+      index.setProperty(prefix + "lastModified", String.valueOf(entry.lastModified));
+      if (entry.failed) {
+        index.setProperty(prefix + "failed", "true");
+        continue;
+      }
+      index.setProperty(prefix + "digest", entry.digest);
+      index.setProperty(prefix + "described", String.valueOf(entry.described));
+      index.setProperty(prefix + "name", entry.name);
+      index.setProperty(prefix + "version", entry.version);
+      if (entry.description != null) {
+        index.setProperty(prefix + "description", entry.description);
+      }
+      if (entry.properties != null) {
+        StringBuilder keys = new StringBuilder();
+        for (ConfigurationProperty cp : entry.properties) {
+          keys.append(keys.length() == 0 ? "" : ",").append(cp.key);
+          if (cp.description != null) {
+            index.setProperty(prefix + "property." + cp.key + ".description", cp.description);
+          }
+          if (cp.defaultValue != null) {
+            index.setProperty(prefix + "property." + cp.key + ".default", cp.defaultValue);
+          }
+        }
+        index.setProperty(prefix + "properties", keys.toString());
+      }
+    }
+    
+    indexFile.getParentFile().mkdirs();
+    File tmp = File.createTempFile(INDEX_FILENAME, ".tmp", indexFile.getParentFile());
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream(tmp);
+      index.store(os, "Package catalog index");
+      os.close();
+      indexFile.delete();
+      if (!tmp.renameTo(indexFile)) {
+        throw new IOException("Could not write the catalog index " + indexFile);
+      }
+    } finally {
+      IOUtils.closeQuietly(os);
+      tmp.delete();
+    }
+  }
+  
+  /**
+   * A package in the catalog.
+   */
+  public static class Entry {
+    
+    /**
+     * The package URL, as accepted by {@link PackageRunner}.
+     */
+    public final String url;
+    
+    /**
+     * The hex-encoded SHA-256 of the package.
+     */
+    public final String digest;
+    public String name;
+    public String version;
+    public String description;
+    
+    /**
+     * The properties of the package context, or {@code null} if the package does not
+     * declare them.
+     */
+    public List<ConfigurationProperty> properties;
+    
+    private final long size;
+    private final long lastModified;
+    private final boolean described;
+    
+    /**
+     * Whether or not the package could not be read, so it is only indexed to be left out.
+     */
+    private final boolean failed;
+    
+    private Entry(String url, String digest, long size, long lastModified, boolean described,
+        boolean failed) {
+      this.url = url;
+      this.digest = digest;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.described = described;
+      this.failed = failed;
+    }
+  }
+  
+  /**
+   * A package that is available, which may or may not be indexed.
+   */
+  private static class Candidate {
+    
+    private final String url;
+    private final String fileName;
+    private final long size;
+    private final long lastModified;
+    
+    private Candidate(String url, String fileName, long size, long lastModified) {
+      this.url = url;
+      this.fileName = fileName;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+    
+    String getDefaultName() {
+      int dot = fileName.lastIndexOf('.');
+      return (dot == -1) ? fileName : fileName.substring(0, dot);
+    }
+    
+    String getDefaultVersion() {
+      return "";
+    }
+  }
+  
+  /**
+   * A package artifact in the local Maven repository, referred to by its mvn: URL.
+   */
+  private static class MavenCandidate extends Candidate {
+    
+    private static final String PREFIX = "mvn:";
+    
+    private final String artifactId;
+    private final String version;
+    
+    private MavenCandidate(String url, File file, String artifactId, String version) {
+      super(url, file.getName(), file.length(), file.lastModified());
+      this.artifactId = artifactId;
+      this.version = version;
+    }
+    
+    /**
+     * @param repository
+     * @param file
+     * @return The candidate for the given file, or {@code null} if it is not laid out as an
+     * artifact.
+     */
+    private static MavenCandidate create(File repository, File file) {
+      File versionDir = file.getParentFile();
+      File artifactDir = versionDir.getParentFile();
+      File groupDir = (artifactDir == null) ? null : artifactDir.getParentFile();
+      if (groupDir == null || groupDir.equals(repository)
+          || !groupDir.getAbsolutePath().startsWith(repository.getAbsolutePath())) {
+        return null;
+      }
+      
+      String artifactId = artifactDir.getName();
+      String version = versionDir.getName();
+      String base = artifactId + "-" + version;
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+      if (!name.startsWith(base) || dot < base.length()) {
+        return null;
+      }
+      
+      String groupId = groupDir.getAbsolutePath().substring(repository.getAbsolutePath().length() + 1)
+          .replace(File.separatorChar, '.');
+      String classifier = name.substring(base.length(), dot);
+      if (classifier.length() > 0 && !classifier.startsWith("-")) {
+        return null;
+      }
+      
+      StringBuilder url = new StringBuilder(PREFIX).append(groupId).append(':').append(artifactId)
+          .append(':').append(version).append(':').append(name.substring(dot + 1));
+      if (classifier.length() > 0) {
+        url.append(':').append(classifier.substring(1));
+      }
+      return new MavenCandidate(url.toString(), file, artifactId, version);
+    }
+    
+    /**
+     * @param repository
+     * @param url
+     * @return The file of the artifact with the given mvn: URL.
+     */
+    private static File toFile(File repository, String url) {
+      String[] coords = url.substring(PREFIX.length()).split(":");
+      String classifier = (coords.length > 4) ? "-" + coords[4] : "";
+      return new File(repository, String.format("%s/%s/%s/%s-%s%s.%s", coords[0].replace('.', '/'),
+          coords[1], coords[2], coords[1], coords[2], classifier, coords[3]));
+    }
+    
+    @Override
+    String getDefaultName() {
+      return artifactId;
+    }
+    
+    @Override
+    String getDefaultVersion() {
+      return version;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The record of a scaffold that was generated: a hash of its inputs (the package digest and
+ * the effective context), and the files that were generated along with their sizes and
+ * modification times. When a scaffold goal runs again with the same inputs and its output is
+ * still intact, there is nothing to do.
+ */
+public class ScaffoldFingerprint {
+
+  private static final String INPUTS_PREFIX = "inputs ";
+  
+  private final File file;
+  
+  /**
+   * @param dir The directory in which fingerprints are kept
+   * @param packageUrl The package the scaffold is generated from
+   * @param targetDir The directory the scaffold is generated into
+   */
+  public ScaffoldFingerprint(File dir, String packageUrl, File targetDir) {
+    String key;
+    try {
+      key = PackageUtil.toHex(PackageUtil.sha256().digest((packageUrl + "\n"
+          + targetDir.getAbsolutePath()).getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    this.file = new File(dir, key);
+  }
+  
+  /**
+   * @param packageDigest The digest of the package
+   * @param context The effective context of the scaffold
+   * @return The hash of the inputs of a scaffold.
+   */
+  public static String hashInputs(String packageDigest, Map<String, Object> context) {
+    StringBuilder inputs = new StringBuilder(packageDigest).append('\n');
+    for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(context).entrySet()) {
+      inputs.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+    }
+    try {
+      return PackageUtil.toHex(PackageUtil.sha256().digest(inputs.toString().getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * @param inputs The hash of the current inputs
+   * @return Whether or not the scaffold was generated with the same inputs, and all of the
+   * files generated then are still there, unchanged in size and modification time.
+   */
+  public boolean isUpToDate(String inputs) {
+    if (!file.isFile()) {
+      return false;
+    }
+    
+    try {
+      List<String> lines = FileUtils.readLines(file, "UTF-8");
+      if (lines.isEmpty() || !lines.get(0).equals(INPUTS_PREFIX + inputs)) {
+        return false;
+      }
+      
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split(" ", 3);
+        long size = Long.parseLong(fields[0]);
+        long modified = Long.parseLong(fields[1]);
+        File generated = new File(fields[2]);
+        boolean intact = (size < 0) ? generated.isDirectory()
+            : (generated.isFile() && generated.length() == size
+                && generated.lastModified() == modified);
+        if (!intact) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      return false;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Record that the scaffold was generated with the given inputs.
+   * 
+   * @param inputs The hash of the inputs
+   * @param generated The files and directories that were generated
+   * @throws IOException
+   */
+  public void store(String inputs, List<File> generated) throws IOException {
+    List<String> lines = new ArrayList<String>(generated.size() + 1);
+    lines.add(INPUTS_PREFIX + inputs);
+    for (File f : generated) {
+      // a directory is modified whenever its entries are, so only its existence is recorded
+      long size = f.isDirectory() ? -1 : f.length();
+      long modified = f.isDirectory() ? -1 : f.lastModified();
+      lines.add(size + " " + modified + " " + f.getAbsolutePath());
+    }
+    file.getParentFile().mkdirs();
+    FileUtils.writeLines(file, "UTF-8", lines, "\n");
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven.plugins;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.sakaiproject.oae.maven.ConfigurationProperty;
+import org.sakaiproject.oae.maven.Help;
+import org.sakaiproject.oae.maven.HelpProvider;
+import org.sakaiproject.oae.maven.PackageCatalog;
+import org.sakaiproject.vtlgen.PackageCache;
+import org.sakaiproject.vtlgen.PackageRunner;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List the template packages in the catalog, which can then be generated with the scaffold
+ * goal.
+ * 
+ * @requiresProject false
+ * @goal catalog
+ */
+public class CatalogMojo extends AbstractMojo implements HelpProvider {
+
+  public static Help createHelp() {
+    return new Help("catalog", "List the template packages available to oae:scaffold.");
+  }
+  
+  /**
+   * Comma-separated directories in which to look for packages, in addition to the plugin
+   * and the local Maven repository.
+   * 
+   * @parameter expression="${vtlg.catalogDirs}"
+   */
+  private String catalogDirs;
+  
+  /**
+   * Comma-separated groups of the local Maven repository in which to look for packages,
+   * with their sub-groups. Defaults to org.sakaiproject.
+   * 
+   * @parameter expression="${vtlg.catalogGroups}"
+   */
+  private String catalogGroups;
+  
+  /**
+   * The directory in which the catalog index is kept.
+   * 
+   * @parameter expression="${vtlg.cacheDir}"
+   */
+  private String cacheDir;
+  
+  /**
+   * The local repository of the build, in which packages are looked for.
+   * 
+   * @parameter expression="${settings.localRepository}"
+   * @readonly
+   */
+  private String localRepository;
+  
+  /**
+   * {@inheritDoc}
+   * @see org.apache.maven.plugin.Mojo#execute()
+   */
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    Map<String, Object> props = new HashMap<String, Object>();
+    if (catalogDirs != null) {
+      props.put(PackageCatalog.PROP_DIRS, catalogDirs);
+    }
+    if (catalogGroups != null) {
+      props.put(PackageCatalog.PROP_GROUPS, catalogGroups);
+    }
+    if (cacheDir != null) {
+      props.put(PackageCache.PROP_CACHE_DIR, cacheDir);
+    }
+    if (localRepository != null) {
+      props.put(PackageRunner.PROP_LOCAL_REPOSITORY, localRepository);
+    }
+    
+    List<PackageCatalog.Entry> entries;
+    try {
+      entries = PackageCatalog.fromProperties(props).list();
+    } catch (IOException e) {
+      throw new MojoExecutionException("Could not list the package catalog.", e);
+    }
+    
+    getLog().info("");
+    getLog().info("");
+    
+    if (!entries.isEmpty()) {
+      getLog().info("Available packages:");
+      getLog().info("");
+      for (PackageCatalog.Entry entry : entries) {
+        StringBuilder line = new StringBuilder("\t").append(entry.name);
+        if (entry.version.length() > 0) {
+          line.append(':').append(entry.version);
+        }
+        if (entry.description != null) {
+          line.append(" - ").append(entry.description);
+        }
+        getLog().info(line);
+        getLog().info("\t\t" + entry.url + " (sha256 " + entry.digest.substring(0, 12) + ")");
+        if (entry.properties != null) {
+          for (ConfigurationProperty cp : entry.properties) {
+            getLog().info("\t\t-D" + cp.key + ((cp.defaultValue == null) ? " (Required)"
+                : " (Default: " + cp.defaultValue + ")"));
+          }
+        }
+      }
+    } else {
+      getLog().info("No packages available.");
+    }
+    
+    getLog().info("");
+    getLog().info("");
+    getLog().info("To generate a package, try mvn oae:scaffold -Dpackage=<name>[:<version>]");
+    getLog().info("");
+    getLog().info("");
+  }
+}
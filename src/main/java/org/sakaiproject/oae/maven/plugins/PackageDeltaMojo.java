@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven.plugins;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.sakaiproject.oae.maven.Help;
+import org.sakaiproject.oae.maven.HelpProvider;
+import org.sakaiproject.vtlgen.api.PackageDelta;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Create the delta between two versions of a package, to be published next to the new
+ * version so that cached copies of the old version can be updated without fetching the
+ * whole package.
+ * 
+ * @requiresProject false
+ * @goal package-delta
+ */
+public class PackageDeltaMojo extends AbstractMojo implements HelpProvider {
+
+  public static Help createHelp() {
+    return new Help("package-delta", "Create the delta from -Dbase=<old.tar> to -Dtarget=<new.tar>.");
+  }
+  
+  /**
+   * The previous version of the package.
+   * 
+   * @parameter expression="${base}"
+   * @required
+   */
+  private File base;
+  
+  /**
+   * The new version of the package.
+   * 
+   * @parameter expression="${target}"
+   * @required
+   */
+  private File target;
+  
+  /**
+   * The delta file to create. Defaults to {@code <target>.delta-<base digest>}, which is where
+   * the package cache looks for it.
+   * 
+   * @parameter expression="${output}"
+   */
+  private File output;
+  
+  /**
+   * {@inheritDoc}
+   * @see org.apache.maven.plugin.Mojo#execute()
+   */
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (!base.isFile() || !target.isFile()) {
+      throw new MojoFailureException("Both the base and the target package must be existing files.");
+    }
+    
+    try {
+      String baseDigest = digest(base);
+      String targetDigest = digest(target);
+      File delta = (output != null) ? output :
+          new File(target.getAbsolutePath() + ".delta-" + baseDigest);
+      PackageDelta.create(base, baseDigest, target, targetDigest, delta);
+      getLog().info(String.format("Created delta %s (%d bytes) from %s to %s.", delta, delta.length(),
+          baseDigest, targetDigest));
+    } catch (IOException e) {
+      throw new MojoExecutionException("Could not create the package delta.", e);
+    }
+  }
+  
+  private String digest(File file) throws IOException {
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = new DigestInputStream(new FileInputStream(file), md);
+    try {
+      IOUtils.skip(is, Long.MAX_VALUE);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    return PackageUtil.toHex(md.digest());
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven.plugins;
+
+import org.sakaiproject.oae.maven.AbstractTemplateExtractorPlugin;
+import org.sakaiproject.oae.maven.ConfigurationProperty;
+import org.sakaiproject.oae.maven.Help;
+import org.sakaiproject.oae.maven.HelpProvider;
+import org.sakaiproject.oae.maven.PackageCatalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generate a scaffold from any package in the catalog, by name.
+ * 
+ * @requiresProject false
+ * @goal scaffold
+ */
+public class ScaffoldMojo extends AbstractTemplateExtractorPlugin implements HelpProvider {
+  
+  public static Help createHelp() {
+    return new Help("scaffold", "Generate a package from the catalog (-Dpackage=<name>[:<version>]).");
+  }
+  
+  /**
+   * The name of the package, optionally followed by {@code :version}. The latest version is
+   * used if none is given.
+   * 
+   * @parameter expression="${package}"
+   * @required
+   */
+  private String packageName;
+  
+  /**
+   * The parent directory of the new project.
+   * 
+   * @parameter expression="${basedir}"
+   */
+  private String baseDir;
+  
+  private PackageCatalog.Entry entry;
+
+  /**
+   * {@inheritDoc}
+   * 
+   * The package is pinned to the digest it has in the catalog.
+   * 
+   * @see org.sakaiproject.oae.maven.AbstractTemplateExtractorPlugin#getPackageUrl()
+   */
+  @Override
+  public String getPackageUrl() {
+    PackageCatalog.Entry entry = getEntry();
+    return entry.url + "#sha256=" + entry.digest;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.oae.maven.AbstractTemplateExtractorPlugin#getTargetDir()
+   */
+  @Override
+  public String getTargetDir() {
+    return baseDir;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.oae.maven.AbstractTemplateExtractorPlugin#getDefaults()
+   */
+  @Override
+  public Map<String, Object> getDefaults() {
+    Map<String, Object> defaults = new HashMap<String, Object>();
+    for (ConfigurationProperty cp : getConfigurationProperties()) {
+      if (cp.defaultValue != null) {
+        defaults.put(cp.key, cp.defaultValue);
+      }
+    }
+    return defaults;
+  }
+  
+  /**
+   * {@inheritDoc}
+   * 
+   * A package that does not declare its properties gets all of them.
+   * 
+   * @see org.sakaiproject.oae.maven.AbstractTemplateExtractorPlugin#buildContextProperties(java.util.List, java.util.Map)
+   */
+  @Override
+  protected Map<String, Object> buildContextProperties(List<ConfigurationProperty> configProperties,
+      Map<String, Object> allProps) {
+    if (getEntry().properties == null) {
+      return allProps;
+    }
+    return super.buildContextProperties(configProperties, allProps);
+  }
+
+  @Override
+  public List<ConfigurationProperty> getConfigurationProperties() {
+    List<ConfigurationProperty> properties = getEntry().properties;
+    return (properties == null) ? new ArrayList<ConfigurationProperty>() : properties;
+  }
+  
+  private PackageCatalog.Entry getEntry() {
+    if (entry == null) {
+      try {
+        entry = PackageCatalog.fromProperties(buildAllAvailablePluginProperties())
+            .find(packageName);
+      } catch (IOException e) {
+        throw new RuntimeException("Could not read the package catalog: " + e.getMessage(), e);
+      }
+      if (entry == null) {
+        throw new RuntimeException(String.format("There is no package %s in the catalog. "
+            + "Try mvn oae:catalog", packageName));
+      }
+    }
+    return entry;
+  }
+  
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven.plugins;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.sakaiproject.oae.maven.Help;
+import org.sakaiproject.oae.maven.HelpProvider;
+import org.sakaiproject.vtlgen.FilesystemDirectoryRunner;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Watch a template package directory that is under development, and keep the generated
+ * output up to date. Only the entries that changed are re-rendered. When the context file
+ * changes, only the templates that reference a changed variable are re-rendered, and the
+ * output that is no longer generated, such as that under a name expanded from the previous
+ * value of a variable, is removed. If the context file cannot be read, the previous context
+ * is kept until it can.
+ * 
+ * @requiresProject false
+ * @goal watch
+ */
+public class WatchMojo extends AbstractMojo implements HelpProvider {
+
+  public static Help createHelp() {
+    return new Help("watch", "Re-render a package directory into -DbaseDir whenever it changes (-Dpackage=<dir>).");
+  }
+  
+  /**
+   * The template package directory to watch.
+   * 
+   * @parameter expression="${package}"
+   * @required
+   */
+  private File packageDir;
+  
+  /**
+   * The directory in which the package is rendered.
+   * 
+   * @parameter expression="${baseDir}" default-value="${basedir}"
+   */
+  private File baseDir;
+  
+  /**
+   * An optional properties file with the template context, which is watched as well.
+   * 
+   * @parameter expression="${contextFile}"
+   */
+  private File contextFile;
+  
+  /**
+   * How often, in milliseconds, the package is checked for changes.
+   * 
+   * @parameter expression="${interval}" default-value="250"
+   */
+  private long interval;
+  
+  /**
+   * {@inheritDoc}
+   * @see org.apache.maven.plugin.Mojo#execute()
+   */
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    if (!packageDir.isDirectory()) {
+      throw new MojoFailureException(String.format("Package %s must be an existing directory.",
+          packageDir.getAbsolutePath()));
+    }
+    
+    final File root = packageDir.getAbsoluteFile();
+    final File target = baseDir.getAbsoluteFile();
+    final FilesystemDirectoryRunner runner = new FilesystemDirectoryRunner(
+        ResourceLimits.fromProperties(buildContext()));
+    final Map<String, Object> context = new HashMap<String, Object>();
+    final List<File> generated = new ArrayList<File>();
+    
+    FileAlterationObserver observer = new FileAlterationObserver(root);
+    observer.addListener(new FileAlterationListenerAdaptor() {
+      @Override
+      public void onDirectoryCreate(File directory) {
+        update(runner, root, directory, target, context, generated);
+      }
+      
+      @Override
+      public void onDirectoryDelete(File directory) {
+        remove(runner, root, directory, target, context);
+      }
+      
+      @Override
+      public void onFileCreate(File file) {
+        update(runner, root, file, target, context, generated);
+      }
+      
+      @Override
+      public void onFileChange(File file) {
+        update(runner, root, file, target, context, generated);
+      }
+      
+      @Override
+      public void onFileDelete(File file) {
+        remove(runner, root, file, target, context);
+      }
+    });
+    
+    try {
+      observer.initialize();
+    } catch (Exception e) {
+      throw new MojoExecutionException("Could not watch package " + root.getAbsolutePath(), e);
+    }
+    
+    long contextModified = -1;
+    long contextFailed = -1;
+    getLog().info(String.format("Watching %s for changes. Press Ctrl-C to stop.",
+        root.getAbsolutePath()));
+    try {
+      while (true) {
+        long modified = (contextFile == null) ? 0 : contextFile.lastModified();
+        if (modified != contextModified) {
+          // a context file that is being saved may not be readable yet, so the previous
+          // context is kept and the file is read again on the next check
+          Map<String, Object> newContext = null;
+          try {
+            newContext = buildContext();
+          } catch (MojoExecutionException e) {
+            if (modified != contextFailed) {
+              getLog().error("Could not read the context, keeping the previous one", e);
+              contextFailed = modified;
+            }
+          }
+          if (newContext != null) {
+            Set<String> changedKeys = (contextModified == -1) ? null
+                : getChangedKeys(context, newContext);
+            contextModified = modified;
+            context.clear();
+            context.putAll(newContext);
+            refresh(runner, root, target, context, changedKeys, generated);
+          }
+        }
+        observer.checkAndNotify();
+        Thread.sleep(interval);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Bring the whole output up to date with a changed context, removing what is no longer
+   * generated.
+   * 
+   * @param changedKeys The variables that changed, or {@code null} to re-render everything
+   * @param generated The output generated so far, which is replaced by the new output
+   */
+  private void refresh(FilesystemDirectoryRunner runner, File root, File target,
+      Map<String, Object> context, Set<String> changedKeys, List<File> generated) {
+    try {
+      List<File> refreshed = runner.refresh(root, target, context, changedKeys, generated);
+      generated.clear();
+      generated.addAll(refreshed);
+    } catch (RuntimeException e) {
+      getLog().error("Failed to render " + root.getAbsolutePath(), e);
+    }
+  }
+  
+  /**
+   * Re-render one entry of the package. Failures are logged rather than thrown, so that a
+   * template that is being edited does not stop the watch. A condition file re-evaluates its
+   * directory, which is done by refreshing the whole output so that what the directory
+   * generates, or no longer generates, is tracked.
+   * 
+   * @param generated The output generated so far, to which the new output is added
+   */
+  private void update(FilesystemDirectoryRunner runner, File root, File source, File target,
+      Map<String, Object> context, List<File> generated) {
+    if (FilesystemDirectoryRunner.CONDITION_FILENAME.equals(source.getName())) {
+      refresh(runner, root, target, context, Collections.<String>emptySet(), generated);
+      return;
+    }
+    
+    try {
+      File updated = runner.update(root, source, target, context);
+      if (updated != null) {
+        generated.add(updated);
+      }
+    } catch (RuntimeException e) {
+      getLog().error("Failed to render " + source.getAbsolutePath(), e);
+    }
+  }
+  
+  private void remove(FilesystemDirectoryRunner runner, File root, File source, File target,
+      Map<String, Object> context) {
+    // the output of the removed entry is left in the generated list, and is skipped when it
+    // is found to be gone on the next refresh
+    try {
+      runner.remove(root, source, target, context);
+    } catch (RuntimeException e) {
+      getLog().error("Failed to remove the output of " + source.getAbsolutePath(), e);
+    }
+  }
+  
+  /**
+   * @param previous
+   * @param current
+   * @return The names of the variables that were added, removed or changed.
+   */
+  private Set<String> getChangedKeys(Map<String, Object> previous, Map<String, Object> current) {
+    Set<String> changed = new HashSet<String>();
+    for (Map.Entry<String, Object> entry : previous.entrySet()) {
+      Object value = current.get(entry.getKey());
+      if (value == null ? entry.getValue() != null : !value.equals(entry.getValue())) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (String key : current.keySet()) {
+      if (!previous.containsKey(key)) {
+        changed.add(key);
+      }
+    }
+    return changed;
+  }
+  
+  /**
+   * @return The template context: the system properties, overridden by the context file if
+   * there is one.
+   */
+  private Map<String, Object> buildContext() throws MojoExecutionException {
+    Map<String, Object> result = new HashMap<String, Object>();
+    Properties props = new Properties();
+    props.putAll(System.getProperties());
+    
+    if (contextFile != null && contextFile.exists()) {
+      InputStream is = null;
+      try {
+        is = new FileInputStream(contextFile);
+        props.load(is);
+      } catch (IOException e) {
+        throw new MojoExecutionException("Could not read context file " + contextFile, e);
+      } catch (IllegalArgumentException e) {
+        // a malformed unicode escape, e.g. in a file that is only half written
+        throw new MojoExecutionException("Could not parse context file " + contextFile, e);
+      } finally {
+        IOUtils.closeQuietly(is);
+      }
+    }
+    
+    for (Object keyObj : props.keySet()) {
+      String key = keyObj.toString();
+      result.put(key, props.getProperty(key));
+    }
+    return result;
+  }
+}
@@ -17,38 +17,211 @@
  */
 package org.sakaiproject.vtlgen;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
 import org.sakaiproject.vtlgen.api.Runner;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents.Span;
+import org.sakaiproject.vtlgen.api.ScaffoldListener.Phase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Run the processor from a source that is a file-system directory.
+ * <p>
+ * A directory of the package may contain a {@value #CONDITION_FILENAME} file with a velocity
+ * condition, such as {@code $includeApi == "true"}. If the condition does not hold for the
+ * context, the directory and everything under it is skipped without being read. Templates
+ * that render to nothing do not produce a file.
+ * <p>
+ * The root of a package may contain a {@value #METADATA_FILENAME} properties file that
+ * describes the package in the catalog. It is never generated.
  */
 public class FilesystemDirectoryRunner implements Runner<File> {
 
   private final static Logger LOGGER = LoggerFactory.getLogger(FilesystemDirectoryRunner.class);
   private final static Pattern FILENAME_EXPR_PATTERN = Pattern.compile("(\\$\\{([^}]+)\\})");
   
-  private final static VelocityFileProcessor processor = new VelocityFileProcessor();
+  public final static String CONDITION_FILENAME = ".vtlg-if";
+  public final static String METADATA_FILENAME = ".vtlg-package";
+  
+  private final VelocityFileProcessor processor;
+  
+  public FilesystemDirectoryRunner() {
+    this(ResourceLimits.defaults());
+  }
+  
+  /**
+   * @param limits The limits applied when rendering each template of the package
+   */
+  public FilesystemDirectoryRunner(ResourceLimits limits) {
+    this(limits, null);
+  }
+  
+  /**
+   * @param limits The limits applied when rendering each template of the package
+   * @param renderCacheDir The directory in which rendered templates are cached, or {@code null}
+   * to only cache them in memory
+   */
+  public FilesystemDirectoryRunner(ResourceLimits limits, File renderCacheDir) {
+    this.processor = new VelocityFileProcessor(limits, renderCacheDir);
+  }
   
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.vtlgen.api.Runner#run(java.lang.Object, java.io.File, java.util.Map)
    */
   public void run(File packageRoot, File target, Map<String, Object> context) {
+    generate(packageRoot, target, context);
+  }
+  
+  /**
+   * Run the package in the same way as {@link #run(File, File, Map)}, and list what was
+   * generated.
+   * 
+   * @param packageRoot The root directory of the package
+   * @param target The directory into which the package is generated
+   * @param context The context data
+   * @return The files and directories that were generated, parents before their children
+   */
+  public List<File> generate(File packageRoot, File target, Map<String, Object> context) {
     LOGGER.debug("Beginning FilesystemDirectoryRunner with context: {}", context);
     prepareAndValidate(packageRoot, target);
-    for (File child : packageRoot.listFiles()) {
-      runInternal(child, target, context);
+    List<File> generated = new ArrayList<File>();
+    runChildren(packageRoot.listFiles(), target, false, context, generated);
+    return generated;
+  }
+  
+  /**
+   * Bring a target that the package was previously run into up to date with a changed
+   * context. Only the templates that reference one of the changed variables, or whose
+   * references are not known (e.g., they use #set), are rendered again, along with any
+   * output that is missing, such as output whose name was expanded from a changed variable.
+   * Directories are re-evaluated against their conditions.
+   * <p>
+   * Whatever was previously generated and is no longer part of the output is then removed:
+   * files are deleted, and directories only once they are empty, so that nothing but
+   * generated output is ever removed.
+   * 
+   * @param packageRoot The root directory of the package
+   * @param target The directory into which the package was generated
+   * @param context The new context data
+   * @param changedKeys The names of the variables whose value changed, or {@code null} to
+   * render every template again
+   * @param previous The files and directories that were previously generated, parents
+   * before their children
+   * @return The files and directories that are now generated, parents before their children
+   */
+  public List<File> refresh(File packageRoot, File target, Map<String, Object> context,
+      Set<String> changedKeys, List<File> previous) {
+    prepareAndValidate(packageRoot, target);
+    List<File> generated = new ArrayList<File>();
+    refreshChildren(packageRoot.listFiles(), target, context, changedKeys, generated);
+    
+    Set<File> current = new HashSet<File>(generated);
+    for (int i = previous.size() - 1; i >= 0; i--) {
+      File stale = previous.get(i);
+      if (!current.contains(stale) && stale.delete()) {
+        LOGGER.info("Removed file: " + stale.getAbsolutePath());
+      }
+    }
+    return generated;
+  }
+  
+  private void refreshChildren(File[] children, File targetDir, Map<String, Object> context,
+      Set<String> changedKeys, List<File> generated) {
+    for (File child : children) {
+      if (isConditionFile(child) || isMetadataFile(child)) {
+        continue;
+      }
+      
+      File target = new File(targetDir, processVtlgFilename(child.getName(), context));
+      if (child.isDirectory()) {
+        File[] grandChildren = child.listFiles();
+        if (isIncluded(child, grandChildren, context)) {
+          if (!target.isDirectory()) {
+            process(child, true, target, context, true);
+          }
+          generated.add(target);
+          refreshChildren(grandChildren, target, context, changedKeys, generated);
+        }
+      } else {
+        if (!target.exists() || (isVtlgFile(child) && isAffected(child, changedKeys))) {
+          target = process(child, false, target, context, true);
+        }
+        if (target != null) {
+          generated.add(target);
+        }
+      }
+    }
+  }
+  
+  /**
+   * @param template
+   * @param changedKeys
+   * @return Whether or not the output of the template may depend on one of the changed keys.
+   */
+  private boolean isAffected(File template, Set<String> changedKeys) {
+    if (changedKeys == null) {
+      return true;
+    }
+    
+    Set<String> references = null;
+    try {
+      references = processor.getReferences(new FileInputStream(template));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (references == null) {
+      return true;
+    }
+    for (String key : changedKeys) {
+      if (references.contains(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Run the children of a package directory into the given target directory.
+   * <p>
+   * The file-system is only touched where it has to be: each source entry is stat'ed once,
+   * and the existence of a target is only checked when the target directory existed before
+   * this run. Entries of a directory that this run created can only collide with each other,
+   * which is checked in memory. Names are compared regardless of case there, as they are on
+   * case-insensitive file-systems.
+   * 
+   * @param children The children of the package directory
+   * @param targetDir The directory into which the children are generated
+   * @param targetDirIsNew Whether or not the target directory was created by this run
+   * @param context The context data
+   * @param generated The list to which the generated files are added
+   */
+  private void runChildren(File[] children, File targetDir, boolean targetDirIsNew,
+      Map<String, Object> context, List<File> generated) {
+    Set<String> names = targetDirIsNew ? new HashSet<String>() : null;
+    for (File child : children) {
+      if (!isConditionFile(child) && !isMetadataFile(child)) {
+        runInternal(child, targetDir, names, context, generated);
+      }
     }
   }
   
@@ -59,63 +232,297 @@ public class FilesystemDirectoryRunner implements Runner<File> {
    * 
    * @param source The source file that should be (if necessary) processed by the generator
    * @param targetParent The *parent* of the target location. The actual filename will be determined by the generator
+   * @param siblingNames The lower-cased names generated so far in the target parent if it was
+   * created by this run, or {@code null} if it already existed
    * @param context The context data
+   * @param generated The list to which the generated files are added
    */
-  private void runInternal(File source, File targetParent, Map<String, Object> context) {
+  private void runInternal(File source, File targetParent, Set<String> siblingNames,
+      Map<String, Object> context, List<File> generated) {
     LOGGER.debug("runInternal from '{}' to target parent '{}'", source.getAbsolutePath(),
         targetParent.getAbsolutePath());
-    File target = process(source, targetParent, context);
+    boolean directory = source.isDirectory();
+    File[] children = null;
+    if (directory) {
+      children = source.listFiles();
+      if (!isIncluded(source, children, context)) {
+        LOGGER.info("Skipped directory: " + source.getAbsolutePath());
+        return;
+      }
+    }
+    
+    String name = processVtlgFilename(source.getName(), context);
+    File target = new File(targetParent, name);
+    boolean exists = (siblingNames == null) ? (!directory && target.exists())
+        : !siblingNames.add(name.toLowerCase(Locale.ENGLISH));
+    if (exists) {
+      throw new RuntimeException("Target file "+target.getAbsolutePath()+" already exists. Not overwriting.");
+    }
+    
+    target = process(source, directory, target, context, false);
     LOGGER.debug("Finished processing of '{}'", source.getAbsolutePath());
-    if (source.isDirectory()) {
-      for (File child : source.listFiles()) {
-        runInternal(child, target, context);
+    if (target != null) {
+      generated.add(target);
+    }
+    if (directory) {
+      runChildren(children, target, true, context, generated);
+    }
+  }
+  
+  /**
+   * Determine whether or not the given package directory should be generated, according to
+   * its condition file, if it has one.
+   * 
+   * @param dir
+   * @param children The children of the directory
+   * @param context
+   * @return
+   */
+  private boolean isIncluded(File dir, File[] children, Map<String, Object> context) {
+    File conditionFile = null;
+    for (File child : children) {
+      if (isConditionFile(child)) {
+        conditionFile = child;
       }
     }
+    if (conditionFile == null) {
+      return true;
+    }
+    
+    try {
+      String condition = FileUtils.readFileToString(conditionFile).trim();
+      ByteArrayOutputStream result = new ByteArrayOutputStream();
+      processor.processFile(new ByteArrayInputStream(("#if(" + condition + ")true#end")
+          .getBytes()), result, context);
+      return "true".equals(result.toString());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (RuntimeException e) {
+      throw new RuntimeException("Failed to evaluate condition " + conditionFile.getAbsolutePath(), e);
+    }
+  }
+  
+  private boolean isConditionFile(File f) {
+    return CONDITION_FILENAME.equals(f.getName());
+  }
+  
+  private boolean isMetadataFile(File f) {
+    return METADATA_FILENAME.equals(f.getName());
+  }
+  
+  /**
+   * Re-process a single entry of a package that was previously run into the target, replacing
+   * its previous output. Only this entry is processed, not the children of a directory. This
+   * is used to incrementally update the target while a package is being developed.
+   * <p>
+   * A changed condition file re-evaluates its directory: if the condition holds, the whole
+   * directory is generated again, otherwise its output is removed. The output of an entry
+   * that a condition excludes is removed as well, so that nothing stale is left behind.
+   * 
+   * @param packageRoot The root of the package that contains the source
+   * @param source The changed source file or directory
+   * @param target The target root the package was run into
+   * @param context The context data
+   * @return The updated target file, which is the target of the directory for a condition
+   * file, or {@code null} if the source is excluded by a condition or rendered to nothing
+   */
+  public File update(File packageRoot, File source, File target, Map<String, Object> context) {
+    if (isMetadataFile(source)) {
+      return null;
+    }
+    if (isConditionFile(source)) {
+      return updateDirectory(packageRoot, source.getParentFile(), target, context);
+    }
+    
+    File targetFile = getTargetFile(packageRoot, source, target, context);
+    if (!isIncluded(packageRoot, source, context)) {
+      removeOutput(targetFile);
+      return null;
+    }
+    
+    targetFile.getParentFile().mkdirs();
+    return process(source, source.isDirectory(), targetFile, context, true);
+  }
+  
+  /**
+   * Remove the output of a single entry of a package that was previously run into the target.
+   * Removing a condition file re-evaluates its directory, in the same way as changing it.
+   * 
+   * @param packageRoot The root of the package that contained the source
+   * @param source The removed source file or directory
+   * @param target The target root the package was run into
+   * @param context The context data
+   */
+  public void remove(File packageRoot, File source, File target, Map<String, Object> context) {
+    if (isMetadataFile(source)) {
+      return;
+    }
+    if (isConditionFile(source)) {
+      if (source.getParentFile().isDirectory()) {
+        updateDirectory(packageRoot, source.getParentFile(), target, context);
+      }
+      return;
+    }
+    removeOutput(getTargetFile(packageRoot, source, target, context));
+  }
+  
+  /**
+   * Generate the given package directory and everything under it again, if it and all of its
+   * parents are included, otherwise remove its output.
+   * 
+   * @return The target of the directory, or {@code null} if it is excluded.
+   */
+  private File updateDirectory(File packageRoot, File dir, File target,
+      Map<String, Object> context) {
+    if (dir.getAbsoluteFile().equals(packageRoot.getAbsoluteFile())) {
+      // the root is always generated, as it is in a full run
+      return null;
+    }
+    
+    File targetDir = getTargetFile(packageRoot, dir, target, context);
+    if (!isIncluded(packageRoot, dir, context)) {
+      removeOutput(targetDir);
+      return null;
+    }
+    
+    targetDir.getParentFile().mkdirs();
+    regenerate(dir, targetDir, context);
+    return targetDir;
+  }
+  
+  /**
+   * Generate the given directory, which is included, and its children again, replacing their
+   * previous output, and removing that of the sub-directories that are excluded.
+   */
+  private void regenerate(File dir, File targetDir, Map<String, Object> context) {
+    process(dir, true, targetDir, context, true);
+    for (File child : dir.listFiles()) {
+      if (isConditionFile(child) || isMetadataFile(child)) {
+        continue;
+      }
+      File targetChild = new File(targetDir, processVtlgFilename(child.getName(), context));
+      if (!child.isDirectory()) {
+        process(child, false, targetChild, context, true);
+      } else if (isIncluded(child, child.listFiles(), context)) {
+        regenerate(child, targetChild, context);
+      } else {
+        removeOutput(targetChild);
+      }
+    }
+  }
+  
+  /**
+   * @return Whether or not the given source, if it is a directory, and all of its parents up
+   * to the package root are included by their conditions.
+   */
+  private boolean isIncluded(File packageRoot, File source, Map<String, Object> context) {
+    File root = packageRoot.getAbsoluteFile();
+    for (File dir = source.getAbsoluteFile(); dir != null && !dir.equals(root);
+        dir = dir.getParentFile()) {
+      if (dir.isDirectory() && !isIncluded(dir, dir.listFiles(), context)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private void removeOutput(File targetFile) {
+    if (FileUtils.deleteQuietly(targetFile)) {
+      LOGGER.info("Removed file: " + targetFile.getAbsolutePath());
+    }
   }
   
   /**
-   * Process the file and copy it to the destination. This includes expanding filename
-   * expressions enclosed in ${...}, and expanding .vtlg files with a velocity template
-   * processor.  
+   * Determine where the given source of the package is generated in the target, by expanding
+   * the name of the source and of each of its parents up to the package root.
    * 
+   * @param packageRoot
    * @param source
-   * @param targetParent
+   * @param target
    * @param context
    * @return
    */
-  private File process(File source, File targetParent, Map<String, Object> context) {
-    String targetPath = new StringBuilder(targetParent.getAbsolutePath()).append(File.separator)
-        .append(processVtlgFilename(source.getName(), context)).toString();
-    
-    if (new File(targetPath).exists()) {
-      throw new RuntimeException("Target file "+targetPath+" already exists. Not overwriting.");
+  private File getTargetFile(File packageRoot, File source, File target,
+      Map<String, Object> context) {
+    LinkedList<String> names = new LinkedList<String>();
+    File root = packageRoot.getAbsoluteFile();
+    File current = source.getAbsoluteFile();
+    while (!current.equals(root)) {
+      names.addFirst(processVtlgFilename(current.getName(), context));
+      current = current.getParentFile();
+      if (current == null) {
+        throw new IllegalArgumentException(String.format("%s is not within the package root %s.",
+            source.getAbsolutePath(), packageRoot.getAbsolutePath()));
+      }
     }
     
+    File targetFile = target;
+    for (String name : names) {
+      targetFile = new File(targetFile, name);
+    }
+    return targetFile;
+  }
+  
+  /**
+   * Process the file and copy it to the destination. This includes expanding .vtlg files with
+   * a velocity template processor, and creating directories.
+   * 
+   * @param source
+   * @param directory Whether or not the source is a directory
+   * @param targetFile The target file, whose name has already been expanded
+   * @param context
+   * @param overwrite Whether or not an existing target may be replaced
+   * @return The target file, or {@code null} if the source rendered to nothing
+   */
+  private File process(File source, boolean directory, File targetFile,
+      Map<String, Object> context, boolean overwrite) {
+    Span span = ScaffoldEvents.begin(Phase.FILE_PROCESSED);
+    String targetPath = targetFile.getAbsolutePath();
     LOGGER.debug("Filtering file to {}", targetPath);
     
-    if (isVtlgFile(source)) {
+    if (directory) {
+      if (!targetFile.mkdir() && !(overwrite && targetFile.isDirectory())) {
+        if (targetFile.exists()) {
+          throw new RuntimeException("Target file "+targetPath+" already exists. Not overwriting.");
+        }
+        throw new RuntimeException("Could not create directory " + targetPath);
+      }
+    } else if (isVtlgFile(source)) {
       LOGGER.debug("File needs to be processed.");
-      File targetFile = new File(targetPath);
       FileInputStream fis = null;
-      FileOutputStream fos = null;
+      LazyFileOutputStream fos = new LazyFileOutputStream(targetFile);
+      if (overwrite) {
+        targetFile.delete();
+      }
       try {
-        targetFile.createNewFile();
-        processor.processFile(new FileInputStream(source), new FileOutputStream(targetFile),
-            context);
+        fis = new FileInputStream(source);
+        processor.processFile(fis, fos, context);
       } catch (IOException e) {
+        targetFile.delete();
         throw new RuntimeException(e);
+      } catch (RuntimeException e) {
+        IOUtils.closeQuietly(fos);
+        targetFile.delete();
+        throw new RuntimeException("Failed to process template " + source.getAbsolutePath(), e);
       } finally {
         IOUtils.closeQuietly(fis);
         IOUtils.closeQuietly(fos);
       }
+      
+      if (!fos.isCreated()) {
+        LOGGER.info("Skipped empty file: " + targetPath);
+        ScaffoldEvents.fileProcessed(span, source.getAbsolutePath(), null);
+        return null;
+      }
     } else {
       LOGGER.debug("Does not need processing. Will just copy.");
-      copyFile(source, targetPath);
+      copyFile(source, targetFile);
     }
     
     LOGGER.info("Extracted file: "+targetPath);
+    ScaffoldEvents.fileProcessed(span, source.getAbsolutePath(), targetPath);
     
-    return new File(targetPath);
+    return targetFile;
   }
   
   /**
@@ -163,39 +570,31 @@ public class FilesystemDirectoryRunner implements Runner<File> {
    * Determine whether or not this file should be run through the velocity template
    * processor.
    * 
-   * @param f
+   * @param f A file that is known not to be a directory
    * @return
    */
   private boolean isVtlgFile(File f) {
-    return !f.isDirectory() && f.getName().endsWith(".vtlg");
+    return f.getName().endsWith(".vtlg");
   }
   
   /**
-   * Copy the {@code from} file or directory to the {@code toPath} location.
+   * Copy the {@code from} file to the {@code to} location.
    * 
    * @param from
-   * @param toPath
+   * @param to
    */
-  private void copyFile(File from, String toPath) {
-    File to = new File(toPath);
-    if (from.isDirectory()) {
-      to.mkdir();
-    } else {
-      try {
-        to.createNewFile();
-        FileInputStream fis = null;
-        FileOutputStream fos = null;
-        try {
-          fis = new FileInputStream(from);
-          fos = new FileOutputStream(to);
-          IOUtils.copy(fis, fos);
-        } finally {
-          IOUtils.closeQuietly(fis);
-          IOUtils.closeQuietly(fos);
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+  private void copyFile(File from, File to) {
+    FileInputStream fis = null;
+    FileOutputStream fos = null;
+    try {
+      fis = new FileInputStream(from);
+      fos = new FileOutputStream(to);
+      IOUtils.copy(fis, fos);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      IOUtils.closeQuietly(fis);
+      IOUtils.closeQuietly(fos);
     }
   }
   
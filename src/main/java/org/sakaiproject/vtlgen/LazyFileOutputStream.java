@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A file output stream that only creates its file when the first byte is written to it, so
+ * that a template which renders nothing does not leave an empty file behind.
+ */
+class LazyFileOutputStream extends OutputStream {
+
+  private final File file;
+  private OutputStream out;
+
+  LazyFileOutputStream(File file) {
+    this.file = file;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    open().write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len > 0) {
+      open().write(b, off, len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  /**
+   * @return Whether or not anything was written, and so the file was created.
+   */
+  boolean isCreated() {
+    return out != null;
+  }
+
+  private OutputStream open() throws IOException {
+    if (out == null) {
+      out = new FileOutputStream(file);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.velocity.VelocityContext;
+
+import java.util.Map;
+
+/**
+ * A velocity context that stops a runaway template while it runs, whether or not it writes
+ * anything. Every #foreach iteration and #set goes through the context, so the render
+ * deadline is checked there, and the #foreach counter is used to count the loop iterations
+ * the template has run in total. Ranges check their size against the same budget through
+ * {@link LimitedIntegerRange}.
+ */
+class LimitedContext extends VelocityContext {
+
+  private final static String FOREACH_COUNTER = "velocityCount";
+  
+  // reading the clock on every access would cost more than the lookups themselves
+  private final static int ACCESSES_PER_CHECK = 64;
+  
+  private final String name;
+  private final long maxMillis;
+  private final long maxIterations;
+  private final long start;
+  private long iterations;
+  private int accesses;
+
+  /**
+   * @param context The context data
+   * @param name The name of the template being rendered, used in error messages
+   * @param maxMillis The maximum time in milliseconds the template may run, 0 or less for no limit
+   * @param maxIterations The maximum number of loop iterations the template may run, and the
+   * maximum size of a range, 0 or less for no limit
+   */
+  LimitedContext(Map<String, Object> context, String name, long maxMillis, long maxIterations) {
+    super(context);
+    this.name = name;
+    this.maxMillis = maxMillis;
+    this.maxIterations = maxIterations;
+    this.start = System.currentTimeMillis();
+  }
+
+  @Override
+  public Object internalGet(String key) {
+    checkDeadline();
+    return super.internalGet(key);
+  }
+
+  @Override
+  public Object internalPut(String key, Object value) {
+    if (FOREACH_COUNTER.equals(key)) {
+      iterations++;
+      if (maxIterations > 0 && iterations > maxIterations) {
+        throw new RuntimeException(String.format("Rendering %s exceeded the maximum of %d "
+            + "loop iterations.", name, maxIterations));
+      }
+    }
+    checkDeadline();
+    return super.internalPut(key, value);
+  }
+
+  /**
+   * @param size The size of a range about to be created
+   * @throws RuntimeException If the range is larger than the iteration budget
+   */
+  void checkRange(long size) {
+    if (maxIterations > 0 && size > maxIterations) {
+      throw new RuntimeException(String.format("Rendering %s created a range of %d elements, "
+          + "which exceeds the maximum of %d loop iterations.", name, size, maxIterations));
+    }
+  }
+
+  private void checkDeadline() {
+    if (maxMillis > 0 && ++accesses % ACCESSES_PER_CHECK == 0
+        && System.currentTimeMillis() - start > maxMillis) {
+      throw new RuntimeException(String.format("Rendering %s exceeded the maximum of %d ms.",
+          name, maxMillis));
+    }
+  }
+}
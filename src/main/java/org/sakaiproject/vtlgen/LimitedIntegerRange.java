@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.runtime.parser.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.node.ASTIntegerRange;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A [n..m] range that checks its size against the budget of a {@link LimitedContext} before
+ * it creates the list, as velocity creates the whole list up front and [1..2000000000] would
+ * otherwise exhaust the heap before the first iteration.
+ */
+class LimitedIntegerRange extends ASTIntegerRange {
+
+  private LimitedIntegerRange(ASTIntegerRange range) {
+    super(ParserTreeConstants.JJTINTEGERRANGE);
+    first = range.getFirstToken();
+    last = range.getLastToken();
+    for (int i = 0; i < range.jjtGetNumChildren(); i++) {
+      Node child = range.jjtGetChild(i);
+      child.jjtSetParent(this);
+      jjtAddChild(child, i);
+    }
+  }
+
+  /**
+   * Replace every range under the given node, which has not been initialized yet, with a
+   * limited one.
+   * 
+   * @param node
+   */
+  static void replaceRanges(Node node) {
+    for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+      Node child = node.jjtGetChild(i);
+      if (child instanceof ASTIntegerRange && !(child instanceof LimitedIntegerRange)) {
+        child = new LimitedIntegerRange((ASTIntegerRange) child);
+        child.jjtSetParent(node);
+        node.jjtAddChild(child, i);
+      }
+      replaceRanges(child);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * The same as {@link ASTIntegerRange#value(InternalContextAdapter)}, with the size checked
+   * before the list is created.
+   */
+  @Override
+  public Object value(InternalContextAdapter context) throws MethodInvocationException {
+    Object left = jjtGetChild(0).value(context);
+    Object right = jjtGetChild(1).value(context);
+    if (!(left instanceof Integer) || !(right instanceof Integer)) {
+      // report the error as velocity does
+      log.error(String.format("%s side of range operator [n..m] is not an integer. "
+          + "Operation not possible. %s [line %d, column %d]", (left instanceof Integer)
+          ? "Right" : "Left", context.getCurrentTemplateName(), getLine(), getColumn()));
+      return null;
+    }
+    
+    int from = ((Integer) left).intValue();
+    int to = ((Integer) right).intValue();
+    long size = Math.abs((long) from - to) + 1;
+    Context user = context.getInternalUserContext();
+    if (user instanceof LimitedContext) {
+      ((LimitedContext) user).checkRange(size);
+    }
+    
+    int step = (from <= to) ? 1 : -1;
+    List<Integer> result = new ArrayList<Integer>((int) size);
+    for (int value = from, i = 0; i < size; value += step, i++) {
+      result.add(Integer.valueOf(value));
+    }
+    return result;
+  }
+}
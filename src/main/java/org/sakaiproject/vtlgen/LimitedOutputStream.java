@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that fails as soon as either too many bytes have been written to it, or
+ * it is written to after its deadline has passed. This is used to stop a runaway template
+ * (e.g., an unbounded #foreach) while it renders, instead of after it has filled the disk.
+ * Templates that run away without writing anything are stopped by {@link LimitedContext}.
+ */
+class LimitedOutputStream extends FilterOutputStream {
+
+  private final String name;
+  private final long maxBytes;
+  private final long maxMillis;
+  private final long start;
+  private long written;
+
+  /**
+   * @param out The stream to write to
+   * @param name The name of the content being written, used in error messages
+   * @param maxBytes The maximum number of bytes that may be written, 0 or less for no limit
+   * @param maxMillis The maximum time in milliseconds the stream may be written to, 0 or less for no limit
+   */
+  LimitedOutputStream(OutputStream out, String name, long maxBytes, long maxMillis) {
+    super(out);
+    this.name = name;
+    this.maxBytes = maxBytes;
+    this.maxMillis = maxMillis;
+    this.start = System.currentTimeMillis();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    check(1);
+    out.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    check(len);
+    out.write(b, off, len);
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  long getWritten() {
+    return written;
+  }
+
+  private void check(int len) throws IOException {
+    written += len;
+    if (maxBytes > 0 && written > maxBytes) {
+      throw new IOException(String.format("Output of %s exceeded the maximum of %d bytes.",
+          name, maxBytes));
+    }
+    if (maxMillis > 0 && System.currentTimeMillis() - start > maxMillis) {
+      throw new IOException(String.format("Rendering %s exceeded the maximum of %d ms.",
+          name, maxMillis));
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+import org.sakaiproject.vtlgen.api.Runner;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command-line launcher for the generator, so a package can be scaffolded without bootstrapping
+ * Maven:
+ * <p>
+ * {@code java -jar oae-maven-plugin-cli.jar [-Dkey=value ...] <package> [target]}
+ * <p>
+ * The package is either a directory, or a package URL as accepted by {@link PackageRunner}. The
+ * target defaults to the current directory. Only the runner for the given kind of package is
+ * loaded.
+ */
+public class Main {
+
+  public static void main(String[] args) {
+    Map<String, Object> context = new HashMap<String, Object>();
+    String pkg = null;
+    String target = ".";
+    int positional = 0;
+    
+    for (String arg : args) {
+      if (arg.startsWith("-D")) {
+        int eq = arg.indexOf('=');
+        if (eq == -1) {
+          context.put(arg.substring(2), "true");
+        } else {
+          context.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+      } else if (positional == 0) {
+        pkg = arg;
+        positional++;
+      } else if (positional == 1) {
+        target = arg;
+        positional++;
+      } else {
+        usage();
+      }
+    }
+    
+    if (pkg == null) {
+      usage();
+    }
+    
+    try {
+      ResourceLimits limits = ResourceLimits.fromProperties(context);
+      Object renderCache = context.get(VelocityFileProcessor.PROP_RENDER_CACHE_DIR);
+      File renderCacheDir = (renderCache == null) ? null : new File(renderCache.toString());
+      File packageDir = new File(pkg);
+      if (packageDir.isDirectory()) {
+        Runner<File> runner = new FilesystemDirectoryRunner(limits, renderCacheDir);
+        runner.run(packageDir, new File(target), context);
+      } else {
+        Runner<String> runner = new PackageRunner(limits, PackageCache.fromProperties(context),
+            renderCacheDir, PackageRunner.getLocalMavenRepository(context));
+        runner.run(pkg, new File(target), context);
+      }
+    } catch (RuntimeException e) {
+      System.err.println("Error: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+  
+  private static void usage() {
+    System.err.println("Usage: java -jar oae-maven-plugin-cli.jar [-Dkey=value ...] <package> [target]");
+    System.err.println();
+    System.err.println("  <package>  A package directory, or a package URL (file:, http:, classpath:, mvn:)");
+    System.err.println("  [target]   The directory into which the package is generated (default: .)");
+    System.exit(2);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.sakaiproject.vtlgen.api.PackageDelta;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * A local cache of remote tar packages, keyed by their URL. When the published digest of a
+ * package changes, the cache first tries to fetch a delta from the cached version, found next
+ * to the package as {@code <url>.delta-<cached digest>}, and only falls back to fetching the
+ * whole package if there is none, or if it does not reproduce the published package exactly.
+ * See {@link PackageDelta} for the delta format.
+ */
+public class PackageCache {
+
+  public static final String PROP_CACHE_DIR = "vtlg.cacheDir";
+  
+  private final static Logger LOGGER = LoggerFactory.getLogger(PackageCache.class);
+  private final static String DELTA_SUFFIX = ".delta-";
+  
+  private final File dir;
+  
+  /**
+   * @param dir The directory in which the packages are cached
+   */
+  public PackageCache(File dir) {
+    this.dir = dir;
+  }
+  
+  /**
+   * Create the cache in the directory given by the {@value #PROP_CACHE_DIR} property, or in
+   * {@code ~/.m2/vtlg-cache} if it is not specified.
+   * 
+   * @param props
+   * @return
+   */
+  public static PackageCache fromProperties(Map<String, Object> props) {
+    Object dir = (props == null) ? null : props.get(PROP_CACHE_DIR);
+    if (dir == null) {
+      return new PackageCache(new File(System.getProperty("user.home"), ".m2" + File.separator
+          + "vtlg-cache"));
+    }
+    return new PackageCache(new File(dir.toString()));
+  }
+  
+  /**
+   * @return The directory in which the packages are cached.
+   */
+  public File getDirectory() {
+    return dir;
+  }
+  
+  /**
+   * Get the local copy of the package at the given URL, updating it first if its digest is
+   * not the given published digest. The cached copy is hashed again before it is used, and
+   * fetched again in full if it no longer matches the digest it was stored with.
+   * 
+   * @param location The URL of the package
+   * @param digest The published SHA-256 of the current version of the package
+   * @param limits The limits enforced when a delta is applied or the package is fetched
+   * @return The cached package file
+   * @throws IOException If the package could not be fetched, or does not match the digest
+   */
+  public File fetch(String location, String digest, ResourceLimits limits) throws IOException {
+    String key = PackageUtil.toHex(PackageUtil.sha256().digest(location.getBytes("UTF-8")));
+    File pkg = new File(dir, key + ".tar");
+    File digestFile = new File(dir, key + ".sha256");
+    String cachedDigest = digestFile.isFile() ? FileUtils.readFileToString(digestFile).trim() : null;
+    
+    if (pkg.isFile() && cachedDigest != null && !cachedDigest.equalsIgnoreCase(hash(pkg))) {
+      LOGGER.warn("Cached package {} for {} does not match its recorded digest. Fetching the "
+          + "whole package again.", pkg, location);
+      cachedDigest = null;
+    }
+    
+    if (pkg.isFile() && digest.equalsIgnoreCase(cachedDigest)) {
+      LOGGER.debug("Using cached package {} for {}", pkg, location);
+      return pkg;
+    }
+    
+    dir.mkdirs();
+    File tmp = File.createTempFile(key, ".tmp", dir);
+    try {
+      if (!pkg.isFile() || cachedDigest == null
+          || !fetchDelta(location, cachedDigest, pkg, digest, tmp, limits)) {
+        fetchFull(location, digest, tmp, limits);
+      }
+      
+      digestFile.delete();
+      pkg.delete();
+      if (!tmp.renameTo(pkg)) {
+        throw new IOException("Could not move the fetched package into the cache at " + pkg);
+      }
+      FileUtils.writeStringToFile(digestFile, digest);
+      return pkg;
+    } finally {
+      FileUtils.deleteQuietly(tmp);
+    }
+  }
+  
+  /**
+   * Update the cached package by applying the delta from its cached version, if the
+   * repository has one.
+   * 
+   * @return Whether or not a delta was found, and produced the package with the given digest.
+   */
+  private boolean fetchDelta(String location, String cachedDigest, File pkg, String digest,
+      File output, ResourceLimits limits) throws IOException {
+    InputStream is = null;
+    try {
+      is = new URL(location + DELTA_SUFFIX + cachedDigest).openStream();
+    } catch (FileNotFoundException e) {
+      LOGGER.debug("No delta for {} from {}", location, cachedDigest);
+      return false;
+    }
+    
+    try {
+      String deltaDigest = PackageDelta.apply(pkg, cachedDigest, is, output, limits);
+      if (!digest.equalsIgnoreCase(deltaDigest)) {
+        LOGGER.warn("Package delta for {} produced {}, not the expected {}. Fetching the whole "
+            + "package instead.", new Object[] { location, deltaDigest, digest });
+        return false;
+      }
+      LOGGER.info("Updated cached package {} from {} to {} with a delta.",
+          new Object[] { location, cachedDigest, digest });
+      return true;
+    } catch (IOException e) {
+      LOGGER.warn("Could not apply the package delta for {}: {} Fetching the whole package "
+          + "instead.", location, e.getMessage());
+      return false;
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+  
+  private void fetchFull(String location, String digest, File output, ResourceLimits limits)
+      throws IOException {
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = null;
+    OutputStream os = null;
+    try {
+      is = new DigestInputStream(new URL(location).openStream(), md);
+      os = new LimitedOutputStream(new FileOutputStream(output), location,
+          limits.getMaxExpandedBytes(), 0);
+      IOUtils.copy(is, os);
+    } finally {
+      IOUtils.closeQuietly(is);
+      IOUtils.closeQuietly(os);
+    }
+    
+    String actual = PackageUtil.toHex(md.digest());
+    if (!digest.equalsIgnoreCase(actual)) {
+      throw new IOException(String.format("Package digest %s does not match the expected %s.",
+          actual, digest));
+    }
+  }
+  
+  private static String hash(File file) throws IOException {
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = null;
+    try {
+      is = new DigestInputStream(new FileInputStream(file), md);
+      IOUtils.copy(is, new NullOutputStream());
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    return PackageUtil.toHex(md.digest());
+  }
+}
@@ -1,55 +1,396 @@
 package org.sakaiproject.vtlgen;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.sakaiproject.vtlgen.api.PackageManifest;
 import org.sakaiproject.vtlgen.api.PackageUtil;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
 import org.sakaiproject.vtlgen.api.Runner;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents.Span;
+import org.sakaiproject.vtlgen.api.ScaffoldListener.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
 import java.util.Map;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
 /**
- *
+ * Run the processor from a package located at a URL. In addition to recognized Java URL
+ * protocols, the classpath: protocol is supported, as well as mvn:groupId:artifactId:version[:type]
+ * to use a package artifact from the local Maven repository. Packages are tar archives, unless
+ * their type or extension is zip or jar. Packages of either kind are extracted while they are
+ * fetched, so each is read only once.
+ * <p>
+ * The expected SHA-256 of a package may be declared with a {@code #sha256=<hex>} fragment on
+ * the URL. If it is not declared, a {@code .sha256} sidecar next to the package is used when
+ * one exists. Either way the package is verified before any of it is rendered.
+ * <p>
+ * If the runner has a {@link PackageCache}, tar packages with a known digest that are fetched
+ * from a URL, including a file: URL, are kept in it, and updated with deltas when the
+ * repository provides them. Zip packages, and packages from the classpath or the local Maven
+ * repository, are streamed from where they are on every run.
  */
 public class PackageRunner implements Runner<String> {
 
-  private final static FilesystemDirectoryRunner fsRunner =
-      new FilesystemDirectoryRunner();
+  /**
+   * The local Maven repository in which mvn: packages are found. The Maven plugin sets it to
+   * the repository of the build, which honours the {@code localRepository} of settings.xml.
+   */
+  public static final String PROP_LOCAL_REPOSITORY = "maven.repo.local";
+  
+  private final static Logger LOGGER = LoggerFactory.getLogger(PackageRunner.class);
+  private final static String DIGEST_FRAGMENT = "#sha256=";
+  private final static String DIGEST_SIDECAR_SUFFIX = ".sha256";
+  private final static String MAVEN_PREFIX = "mvn:";
+  private final static String DEFAULT_MAVEN_TYPE = "tar";
+  private final static String SETTINGS_LOCAL_REPOSITORY = "localRepository";
+
+  private final ResourceLimits limits;
+  private final PackageCache cache;
+  private final File mavenRepository;
+  private final FilesystemDirectoryRunner fsRunner;
+
+  public PackageRunner() {
+    this(ResourceLimits.defaults());
+  }
+
+  /**
+   * @param limits The limits enforced while the package is extracted and rendered
+   */
+  public PackageRunner(ResourceLimits limits) {
+    this(limits, null);
+  }
+
+  /**
+   * @param limits The limits enforced while the package is extracted and rendered
+   * @param cache The cache for remote packages, or {@code null} to always fetch them in full
+   */
+  public PackageRunner(ResourceLimits limits, PackageCache cache) {
+    this(limits, cache, null);
+  }
+
+  /**
+   * @param limits The limits enforced while the package is extracted and rendered
+   * @param cache The cache for remote packages, or {@code null} to always fetch them in full
+   * @param renderCacheDir The directory in which rendered templates are cached, or {@code null}
+   * to only cache them in memory
+   */
+  public PackageRunner(ResourceLimits limits, PackageCache cache, File renderCacheDir) {
+    this(limits, cache, renderCacheDir, getLocalMavenRepository(null));
+  }
+
+  /**
+   * @param limits The limits enforced while the package is extracted and rendered
+   * @param cache The cache for remote packages, or {@code null} to always fetch them in full
+   * @param renderCacheDir The directory in which rendered templates are cached, or {@code null}
+   * to only cache them in memory
+   * @param mavenRepository The local Maven repository in which mvn: packages are found
+   */
+  public PackageRunner(ResourceLimits limits, PackageCache cache, File renderCacheDir,
+      File mavenRepository) {
+    this.limits = limits;
+    this.cache = cache;
+    this.mavenRepository = mavenRepository;
+    this.fsRunner = new FilesystemDirectoryRunner(limits, renderCacheDir);
+  }
 
   public void run(String urlStr, File targetRoot, Map<String, Object> context) {
-    InputStream is = null;
-    OutputStream os = null;
-    File pkg = null;
+    generate(urlStr, targetRoot, context);
+  }
+
+  /**
+   * Run the package in the same way as {@link #run(String, File, Map)}, and list what was
+   * generated.
+   * 
+   * @param urlStr The package URL
+   * @param targetRoot The directory into which the package is generated
+   * @param context The context data
+   * @return The files and directories that were generated, parents before their children
+   */
+  public List<File> generate(String urlStr, File targetRoot, Map<String, Object> context) {
+    Span span = ScaffoldEvents.begin(Phase.PACKAGE_GENERATED);
+    File dir = null;
     try {
-      is = createResourceInputStream(urlStr);
-      pkg = File.createTempFile("vtlg-pkg", String.valueOf(System.currentTimeMillis()));
-      os = new FileOutputStream(pkg);
-      IOUtils.copy(is, os);
+      dir = File.createTempFile("vtlg-dir", String.valueOf(System.currentTimeMillis()));
+      dir.delete();
+      dir.mkdir();
+      PackageManifest manifest = extract(urlStr, dir);
+      LOGGER.debug("Extracted package {} with digest {}", urlStr, manifest.getDigest());
+      List<File> generated = fsRunner.generate(dir, targetRoot, context);
+      ScaffoldEvents.packageGenerated(span, urlStr, manifest.getDigest(), generated.size());
+      return generated;
     } catch (IOException e) {
-      throw new RuntimeException(e);
+      throw new RuntimeException(String.format("Failed to extract package %s: %s", urlStr,
+          e.getMessage()), e);
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+
+  /**
+   * Fetch the package at the given URL and extract it into the given directory. The package
+   * digest is computed on the same stream the package is extracted from, so the package is
+   * read only once, and it is verified before this method returns.
+   * 
+   * @param urlStr The package URL, optionally with a {@code #sha256=<hex>} fragment
+   * @param dir The directory into which the package is extracted
+   * @return The digests of the package and of each of its file entries
+   * @throws IOException If the package could not be fetched or extracted, or its digest does
+   * not match the declared one
+   */
+  public PackageManifest extract(String urlStr, File dir) throws IOException {
+    String location = getLocation(urlStr);
+    String expectedDigest = getDeclaredDigest(urlStr, location);
+    
+    if (isZip(location)) {
+      return extractZip(location, expectedDigest, dir);
+    }
+    
+    if (cache != null && expectedDigest != null && isCacheable(urlStr)) {
+      String digest = expectedDigest.trim();
+      File pkg = cache.fetch(location, digest, limits);
+      return new PackageManifest(digest, PackageUtil.untar(pkg.getAbsolutePath(),
+          dir.getAbsolutePath(), limits));
+    }
+    
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = null;
+    Map<String, String> entryDigests = null;
+    try {
+      is = new DigestInputStream(createResourceInputStream(location), md);
+      entryDigests = PackageUtil.untar(is, location, dir.getAbsolutePath(), limits);
     } finally {
       IOUtils.closeQuietly(is);
-      IOUtils.closeQuietly(os);
     }
     
+    return new PackageManifest(verify(md, expectedDigest), entryDigests);
+  }
+
+  /**
+   * Get the digest of the package at the given URL without extracting it. If the digest is
+   * declared, by a URL fragment or sidecar, that is used and the package is not read at all.
+   * 
+   * @param urlStr The package URL, optionally with a {@code #sha256=<hex>} fragment
+   * @return The hex-encoded SHA-256 of the package
+   * @throws IOException If the package could not be read
+   */
+  public String digest(String urlStr) throws IOException {
+    String location = getLocation(urlStr);
+    String declaredDigest = getDeclaredDigest(urlStr, location);
+    if (declaredDigest != null) {
+      return declaredDigest.trim().toLowerCase();
+    }
+    
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = null;
     try {
-      File dir = File.createTempFile("vtlg-dir", String.valueOf(System.currentTimeMillis()));
-      dir.delete();
-      dir.mkdir();
-      PackageUtil.untar(pkg.getAbsolutePath(), dir.getAbsolutePath());
-      fsRunner.run(dir, targetRoot, context);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+      is = new DigestInputStream(createResourceInputStream(location), md);
+      IOUtils.skip(is, Long.MAX_VALUE);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    return PackageUtil.toHex(md.digest());
+  }
+
+  /**
+   * @param urlStr
+   * @return The location of the package, without a digest fragment, and with a mvn: location
+   * resolved to the file in the local repository.
+   * @throws IOException
+   */
+  private String getLocation(String urlStr) throws IOException {
+    int fragment = urlStr.indexOf(DIGEST_FRAGMENT);
+    return resolveMavenLocation((fragment == -1) ? urlStr : urlStr.substring(0, fragment));
+  }
+
+  /**
+   * @param urlStr
+   * @param location
+   * @return The digest declared in the URL fragment or sidecar file, or {@code null} if there is none.
+   * @throws IOException
+   */
+  private String getDeclaredDigest(String urlStr, String location) throws IOException {
+    int fragment = urlStr.indexOf(DIGEST_FRAGMENT);
+    if (fragment != -1) {
+      return urlStr.substring(fragment + DIGEST_FRAGMENT.length());
+    }
+    return readSidecarDigest(location);
+  }
+
+  /**
+   * Extract a zip package. The archive is streamed through its local entry headers rather than
+   * opened through its central directory, so that the digest is computed on the same read
+   * as the extraction, and a remote package does not need a temporary copy.
+   */
+  private PackageManifest extractZip(String location, String expectedDigest, File dir)
+      throws IOException {
+    MessageDigest md = PackageUtil.sha256();
+    InputStream is = null;
+    Map<String, String> entryDigests = null;
+    try {
+      is = new DigestInputStream(createResourceInputStream(location), md);
+      entryDigests = PackageUtil.unzip(is, location, dir.getAbsolutePath(), limits);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    
+    return new PackageManifest(verify(md, expectedDigest), entryDigests);
+  }
+
+  /**
+   * @param md The digest of the package content
+   * @param expectedDigest The expected hex-encoded digest, or {@code null} if there is none
+   * @return The hex-encoded digest
+   * @throws IOException If the digest does not match the expected digest
+   */
+  private String verify(MessageDigest md, String expectedDigest) throws IOException {
+    String digest = PackageUtil.toHex(md.digest());
+    if (expectedDigest != null && !expectedDigest.trim().equalsIgnoreCase(digest)) {
+      throw new IOException(String.format("Package digest %s does not match the expected %s.",
+          digest, expectedDigest));
+    }
+    return digest;
+  }
+
+  /**
+   * If the location is a mvn: location, resolve it to the file URL of the artifact in the
+   * local Maven repository of this runner. Nothing is ever downloaded.
+   * 
+   * @param location
+   * @return
+   * @throws IOException If the location is malformed, or the artifact is not in the local repository
+   */
+  private String resolveMavenLocation(String location) throws IOException {
+    if (!location.startsWith(MAVEN_PREFIX)) {
+      return location;
+    }
+    
+    String[] coords = location.substring(MAVEN_PREFIX.length()).split(":");
+    if (coords.length < 3 || coords.length > 5) {
+      throw new IOException(String.format("Invalid Maven package %s, expected "
+          + "mvn:groupId:artifactId:version[:type[:classifier]]", location));
+    }
+    
+    String groupId = coords[0];
+    String artifactId = coords[1];
+    String version = coords[2];
+    String type = (coords.length > 3) ? coords[3] : DEFAULT_MAVEN_TYPE;
+    String classifier = (coords.length > 4) ? "-" + coords[4] : "";
+    
+    File artifact = new File(mavenRepository, String.format("%s/%s/%s/%s-%s%s.%s",
+        groupId.replace('.', '/'), artifactId, version, artifactId, version, classifier, type));
+    
+    if (!artifact.isFile()) {
+      throw new FileNotFoundException(String.format("Package %s is not in the local repository "
+          + "at %s.", location, artifact.getAbsolutePath()));
+    }
+    return artifact.toURI().toURL().toString();
+  }
+
+  /**
+   * Determine the local Maven repository: the {@value #PROP_LOCAL_REPOSITORY} property if it
+   * is given or set in the system properties, otherwise the {@code localRepository} of the
+   * user settings.xml, otherwise {@code ~/.m2/repository}.
+   * 
+   * @param props The properties in which the repository may be given, or {@code null}
+   * @return The local Maven repository.
+   */
+  public static File getLocalMavenRepository(Map<String, Object> props) {
+    Object repo = (props == null) ? null : props.get(PROP_LOCAL_REPOSITORY);
+    if (repo == null) {
+      repo = System.getProperty(PROP_LOCAL_REPOSITORY);
+    }
+    if (repo == null) {
+      repo = readSettingsLocalRepository(new File(System.getProperty("user.home"),
+          ".m2" + File.separator + "settings.xml"));
+    }
+    return (repo != null) ? new File(repo.toString()) :
+        new File(System.getProperty("user.home"), ".m2" + File.separator + "repository");
+  }
+
+  /**
+   * @param settings
+   * @return The {@code localRepository} of the given Maven settings file, or {@code null} if
+   * the file does not exist or does not set it.
+   */
+  private static String readSettingsLocalRepository(File settings) {
+    if (!settings.isFile()) {
+      return null;
+    }
+    
+    try {
+      Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(settings);
+      NodeList nodes = document.getElementsByTagName(SETTINGS_LOCAL_REPOSITORY);
+      if (nodes.getLength() == 0) {
+        return null;
+      }
+      String repo = nodes.item(0).getTextContent().trim();
+      repo = repo.replace("${user.home}", System.getProperty("user.home"));
+      return (repo.length() == 0) ? null : repo;
+    } catch (Exception e) {
+      LOGGER.warn("Could not read the local repository from {}: {}", settings, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @param urlStr The package URL, before a mvn: location is resolved
+   * @return Whether or not the package is fetched from a repository, rather than read from the
+   * classpath or the local Maven repository.
+   */
+  private boolean isCacheable(String urlStr) {
+    return !urlStr.startsWith("classpath:") && !urlStr.startsWith(MAVEN_PREFIX);
+  }
+
+  private boolean isZip(String location) {
+    String lower = location.toLowerCase();
+    return lower.endsWith(".zip") || lower.endsWith(".jar");
+  }
+
+  /**
+   * Read the expected digest from the sidecar file next to the package, in the format of
+   * {@code sha256sum} output.
+   * 
+   * @param location
+   * @return The expected digest, or {@code null} if there is no sidecar.
+   * @throws IOException
+   */
+  private String readSidecarDigest(String location) throws IOException {
+    InputStream is = null;
+    try {
+      is = createResourceInputStream(location + DIGEST_SIDECAR_SUFFIX);
+      String[] tokens = IOUtils.toString(is, "UTF-8").trim().split("\\s+");
+      LOGGER.debug("Found digest sidecar for {}", location);
+      return (tokens[0].length() == 0) ? null : tokens[0];
+    } catch (FileNotFoundException e) {
+      LOGGER.debug("No digest sidecar for {}", location);
+      return null;
+    } finally {
+      IOUtils.closeQuietly(is);
     }
   }
 
   private InputStream createResourceInputStream(String urlStr) throws IOException {
     if (urlStr.startsWith("classpath:")) {
-      return getClass().getResourceAsStream(urlStr.substring("classpath:".length()));
+      String path = urlStr.substring("classpath:".length());
+      InputStream is = getClass().getResourceAsStream(path);
+      if (is == null) {
+        throw new FileNotFoundException("Could not find the classpath resource: " + path);
+      }
+      return is;
     } else {
       return new URL(urlStr).openStream();
     }
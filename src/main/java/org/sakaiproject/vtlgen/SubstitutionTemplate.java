@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.velocity.runtime.parser.Token;
+import org.apache.velocity.runtime.parser.node.ASTComment;
+import org.apache.velocity.runtime.parser.node.ASTElseIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTElseStatement;
+import org.apache.velocity.runtime.parser.node.ASTExpression;
+import org.apache.velocity.runtime.parser.node.ASTIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTNotNode;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.NodeUtils;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A template that only substitutes plain variables ({@code $name}, {@code ${name}},
+ * {@code $!name} or {@code $!{name}}) into literal text, and chooses between blocks of those
+ * with {@code #if}, {@code #elseif} and {@code #else} on plain variables ({@code $name} or
+ * {@code !$name}), compiled into a tree of segments. Rendering writes the literal bytes and
+ * the variable values straight to the output, with no parsing or introspection.
+ * <p>
+ * A template is compiled from its Velocity parse tree alone, and only when every node of the
+ * tree is one of the above, so its output is the same as Velocity's: a missing variable
+ * renders as its reference, or as nothing if the reference is quiet, and a condition is true
+ * when its variable is set and is not {@code false}.
+ * <p>
+ * Compiled templates are serializable, so that the templates of the bundled packages can be
+ * compiled when the plugin is built (see {@link TemplatePrecompiler}).
+ */
+class SubstitutionTemplate implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  
+  private final static Pattern PLAIN_REFERENCE =
+      Pattern.compile("\\$!?(\\{[a-zA-Z_][a-zA-Z0-9_-]*\\}|[a-zA-Z_][a-zA-Z0-9_-]*)");
+  
+  private final Segment[] segments;
+  
+  private SubstitutionTemplate(Segment[] segments) {
+    this.segments = segments;
+  }
+  
+  /**
+   * Compile the given parsed template, which must not be initialized yet: initializing a
+   * reference strips its escapes from its tokens. This only looks at the parse tree, and
+   * renders nothing, so no variable is ever looked up.
+   * 
+   * @param node The root of the template
+   * @return The compiled template, or {@code null} if it does more than substitute variables
+   * and choose blocks on them.
+   */
+  static SubstitutionTemplate compile(SimpleNode node) {
+    Segment[] segments = compileBlock(node);
+    return (segments == null) ? null : new SubstitutionTemplate(segments);
+  }
+  
+  /**
+   * Render the template into the given stream, encoding values with the platform charset as
+   * the velocity renderer does.
+   * 
+   * @param context
+   * @param out
+   * @throws IOException
+   */
+  void render(Map<String, Object> context, OutputStream out) throws IOException {
+    render(segments, context, out);
+  }
+  
+  /**
+   * @return The names of all the variables the template substitutes or tests.
+   */
+  Set<String> getVariables() {
+    Set<String> variables = new TreeSet<String>();
+    collectVariables(segments, variables);
+    return variables;
+  }
+  
+  /**
+   * @param node
+   * @return The segments of the children of the given node, or {@code null} if one of them
+   * cannot be compiled.
+   */
+  private static Segment[] compileBlock(Node node) {
+    List<Segment> segments = new ArrayList<Segment>();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+      Node child = node.jjtGetChild(i);
+      if (child instanceof ASTText) {
+        text.append(NodeUtils.tokenLiteral(child.getFirstToken()));
+        continue;
+      } else if (child instanceof ASTComment) {
+        text.append(getCommentPrefix(child.getFirstToken()));
+        continue;
+      }
+      
+      Segment segment = null;
+      if (child instanceof ASTReference) {
+        segment = compileReference(child);
+      } else if (child instanceof ASTIfStatement) {
+        segment = compileIf(child);
+      }
+      if (segment == null) {
+        return null;
+      }
+      if (text.length() > 0) {
+        segments.add(new Text(text.toString()));
+        text.setLength(0);
+      }
+      segments.add(segment);
+    }
+    
+    if (text.length() > 0) {
+      segments.add(new Text(text.toString()));
+    }
+    return segments.toArray(new Segment[segments.size()]);
+  }
+  
+  /**
+   * @param node
+   * @return The variable slot of a plain reference, or {@code null} if it is not one.
+   */
+  private static Variable compileReference(Node node) {
+    if (node.jjtGetNumChildren() != 0) {
+      return null;
+    }
+    
+    // escapes (\$name) and prefixes (#$name) are part of the literal until it is initialized
+    String literal = node.literal();
+    Matcher matcher = PLAIN_REFERENCE.matcher(literal);
+    if (!matcher.matches()) {
+      return null;
+    }
+    String variable = matcher.group(1);
+    if (variable.startsWith("{")) {
+      variable = variable.substring(1, variable.length() - 1);
+    }
+    return new Variable(variable, literal.startsWith("$!") ? "" : literal);
+  }
+  
+  /**
+   * @param node
+   * @return The branches of an #if statement, or {@code null} if a condition is not a plain
+   * variable or a block cannot be compiled.
+   */
+  private static Conditional compileIf(Node node) {
+    List<Variable> conditions = new ArrayList<Variable>();
+    List<Boolean> negations = new ArrayList<Boolean>();
+    List<Segment[]> blocks = new ArrayList<Segment[]>();
+    for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+      Node child = node.jjtGetChild(i);
+      Node expression = null;
+      Node block = null;
+      if (i == 0) {
+        expression = child;
+        block = node.jjtGetChild(++i);
+      } else if (child instanceof ASTElseIfStatement) {
+        expression = child.jjtGetChild(0);
+        block = child.jjtGetChild(1);
+      } else if (child instanceof ASTElseStatement) {
+        block = child.jjtGetChild(0);
+      } else {
+        return null;
+      }
+      
+      Variable condition = null;
+      boolean negated = false;
+      if (expression != null) {
+        if (!(expression instanceof ASTExpression) || expression.jjtGetNumChildren() != 1) {
+          return null;
+        }
+        Node operand = expression.jjtGetChild(0);
+        if (operand instanceof ASTNotNode && operand.jjtGetNumChildren() == 1) {
+          negated = true;
+          operand = operand.jjtGetChild(0);
+        }
+        condition = (operand instanceof ASTReference) ? compileReference(operand) : null;
+        if (condition == null) {
+          return null;
+        }
+      }
+      
+      Segment[] segments = compileBlock(block);
+      if (segments == null) {
+        return null;
+      }
+      conditions.add(condition);
+      negations.add(Boolean.valueOf(negated));
+      blocks.add(segments);
+    }
+    
+    boolean[] negated = new boolean[negations.size()];
+    for (int i = 0; i < negated.length; i++) {
+      negated[i] = negations.get(i).booleanValue();
+    }
+    return new Conditional(conditions.toArray(new Variable[conditions.size()]), negated,
+        blocks.toArray(new Segment[blocks.size()][]));
+  }
+  
+  /**
+   * @param token
+   * @return The text that a comment renders, which is whatever precedes the comment in its
+   * token, exactly as {@link ASTComment} computes it.
+   */
+  private static String getCommentPrefix(Token token) {
+    int line = token.image.indexOf("##");
+    int block = token.image.indexOf("#*");
+    if (line == -1 && block == -1) {
+      return "";
+    }
+    return token.image.substring(0, (line != -1) ? line : block);
+  }
+  
+  private static void render(Segment[] segments, Map<String, Object> context, OutputStream out)
+      throws IOException {
+    for (Segment segment : segments) {
+      segment.render(context, out);
+    }
+  }
+  
+  private static void collectVariables(Segment[] segments, Set<String> variables) {
+    for (Segment segment : segments) {
+      segment.collectVariables(variables);
+    }
+  }
+  
+  /**
+   * A part of a compiled template.
+   */
+  private interface Segment extends Serializable {
+    
+    void render(Map<String, Object> context, OutputStream out) throws IOException;
+    
+    void collectVariables(Set<String> variables);
+  }
+  
+  /**
+   * A run of literal text, which is encoded once it is first rendered.
+   */
+  private static class Text implements Segment {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final String text;
+    private transient byte[] bytes;
+    
+    private Text(String text) {
+      this.text = text;
+    }
+    
+    public void render(Map<String, Object> context, OutputStream out) throws IOException {
+      if (bytes == null) {
+        bytes = text.getBytes();
+      }
+      out.write(bytes);
+    }
+    
+    public void collectVariables(Set<String> variables) {
+    }
+  }
+  
+  /**
+   * A variable slot.
+   */
+  private static class Variable implements Segment {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final String name;
+    private final String nullString;
+    
+    private Variable(String name, String nullString) {
+      this.name = name;
+      this.nullString = nullString;
+    }
+    
+    public void render(Map<String, Object> context, OutputStream out) throws IOException {
+      Object value = context.get(name);
+      String string = (value == null) ? null : value.toString();
+      out.write((string == null ? nullString : string).getBytes());
+    }
+    
+    /**
+     * @param context
+     * @return Whether or not the variable is true in an #if, as velocity evaluates it.
+     */
+    private boolean evaluate(Map<String, Object> context) {
+      Object value = context.get(name);
+      return (value instanceof Boolean) ? ((Boolean) value).booleanValue() : value != null;
+    }
+    
+    public void collectVariables(Set<String> variables) {
+      variables.add(name);
+    }
+  }
+  
+  /**
+   * An #if statement, with the condition and block of each branch. The condition of an #else
+   * branch is {@code null}.
+   */
+  private static class Conditional implements Segment {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final Variable[] conditions;
+    private final boolean[] negated;
+    private final Segment[][] blocks;
+    
+    private Conditional(Variable[] conditions, boolean[] negated, Segment[][] blocks) {
+      this.conditions = conditions;
+      this.negated = negated;
+      this.blocks = blocks;
+    }
+    
+    public void render(Map<String, Object> context, OutputStream out) throws IOException {
+      for (int i = 0; i < blocks.length; i++) {
+        if (conditions[i] == null || conditions[i].evaluate(context) != negated[i]) {
+          SubstitutionTemplate.render(blocks[i], context, out);
+          return;
+        }
+      }
+    }
+    
+    public void collectVariables(Set<String> variables) {
+      for (int i = 0; i < blocks.length; i++) {
+        if (conditions[i] != null) {
+          conditions[i].collectVariables(variables);
+        }
+        SubstitutionTemplate.collectVariables(blocks[i], variables);
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of values keyed by the digest of a template's content.
+ * The cache is bounded both by the number of entries and by their total weight, which is the
+ * size in bytes that the caller accounts to each value.
+ * 
+ * @param <V> The type of the cached value
+ */
+class TemplateCache<V> {
+
+  private final Map<String, Weighted<V>> entries =
+      new LinkedHashMap<String, Weighted<V>>(16, 0.75f, true);
+  private final int maxSize;
+  private final long maxWeight;
+  private long weight;
+
+  /**
+   * @param maxSize The maximum number of entries kept before the least recently used is evicted
+   * @param maxWeight The maximum total weight of the entries kept before the least recently
+   * used are evicted
+   */
+  TemplateCache(int maxSize, long maxWeight) {
+    this.maxSize = maxSize;
+    this.maxWeight = maxWeight;
+  }
+
+  synchronized V get(String digest) {
+    Weighted<V> entry = entries.get(digest);
+    return (entry == null) ? null : entry.value;
+  }
+
+  /**
+   * Cache the given value, unless its weight alone is beyond the maximum total weight.
+   * 
+   * @param digest
+   * @param value
+   * @param valueWeight The size in bytes accounted to the value
+   */
+  synchronized void put(String digest, V value, long valueWeight) {
+    if (valueWeight > maxWeight) {
+      return;
+    }
+    
+    Weighted<V> previous = entries.put(digest, new Weighted<V>(value, valueWeight));
+    if (previous != null) {
+      weight -= previous.weight;
+    }
+    weight += valueWeight;
+    
+    Iterator<Weighted<V>> eldest = entries.values().iterator();
+    while (entries.size() > maxSize || weight > maxWeight) {
+      weight -= eldest.next().weight;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @return The total weight of the cached values.
+   */
+  synchronized long getWeight() {
+    return weight;
+  }
+
+  private static class Weighted<V> {
+    
+    private final V value;
+    private final long weight;
+    
+    private Weighted(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.velocity.runtime.RuntimeSingleton;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Compiles the templates of the packages bundled with the plugin into
+ * {@link SubstitutionTemplate}s when the plugin is built, and stores them in the jar under
+ * {@value #RESOURCE_PREFIX}, named by the SHA-256 of the template. A bundled template whose
+ * compiled form is found there is rendered without velocity ever being parsed or initialized.
+ * <p>
+ * Only templates that are plain ASCII are compiled, so that the platform charset of the
+ * build cannot change what they render to.
+ */
+public class TemplatePrecompiler {
+
+  private final static Logger LOGGER = LoggerFactory.getLogger(TemplatePrecompiler.class);
+  
+  static final String RESOURCE_PREFIX = "META-INF/vtlg/precompiled/";
+  
+  private TemplatePrecompiler() {
+  }
+  
+  /**
+   * Compile the templates of every tar package under the given directory, and store them
+   * under the same directory.
+   * 
+   * @param args The output directory of the build, which holds the bundled packages
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    File classes = new File(args[0]);
+    File target = new File(classes, RESOURCE_PREFIX);
+    int compiled = 0;
+    Collection<File> packages = FileUtils.listFiles(classes, new String[] { "tar" }, true);
+    for (File pkg : packages) {
+      compiled += precompile(pkg, target);
+    }
+    LOGGER.info("Precompiled {} templates of {} bundled packages.", compiled, packages.size());
+  }
+  
+  /**
+   * @param digest The SHA-256 of the template content
+   * @return The compiled template shipped for the given template, or {@code null} if there
+   * is none.
+   * @throws IOException
+   */
+  static SubstitutionTemplate load(String digest) throws IOException {
+    InputStream in = TemplatePrecompiler.class.getClassLoader().getResourceAsStream(
+        RESOURCE_PREFIX + digest);
+    if (in == null) {
+      return null;
+    }
+    try {
+      return (SubstitutionTemplate) new ObjectInputStream(new BufferedInputStream(in))
+          .readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage());
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+  
+  private static int precompile(File pkg, File target) throws IOException {
+    int compiled = 0;
+    TarArchiveInputStream tis = new TarArchiveInputStream(new BufferedInputStream(
+        new FileInputStream(pkg)));
+    try {
+      TarArchiveEntry entry = null;
+      while ((entry = tis.getNextTarEntry()) != null) {
+        if (entry.isFile() && entry.getName().endsWith(".vtlg")) {
+          byte[] content = IOUtils.toByteArray(tis);
+          if (isAscii(content) && store(compile(content, entry.getName()), content, target)) {
+            compiled++;
+          }
+        }
+      }
+    } finally {
+      IOUtils.closeQuietly(tis);
+    }
+    return compiled;
+  }
+  
+  private static SubstitutionTemplate compile(byte[] content, String name) throws IOException {
+    try {
+      return SubstitutionTemplate.compile(RuntimeSingleton.parse(new InputStreamReader(
+          new ByteArrayInputStream(content)), name));
+    } catch (ParseException e) {
+      throw new IOException(String.format("Failed to parse %s: %s", name, e.getMessage()));
+    }
+  }
+  
+  private static boolean store(SubstitutionTemplate template, byte[] content, File target)
+      throws IOException {
+    if (template == null) {
+      return false;
+    }
+    target.mkdirs();
+    OutputStream out = new FileOutputStream(new File(target, PackageUtil.toHex(
+        PackageUtil.sha256().digest(content))));
+    try {
+      ObjectOutputStream oos = new ObjectOutputStream(out);
+      oos.writeObject(template);
+      oos.flush();
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+    return true;
+  }
+  
+  private static boolean isAscii(byte[] content) {
+    for (byte b : content) {
+      if (b < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -17,34 +17,139 @@
  */
 package org.sakaiproject.vtlgen;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
+import org.apache.velocity.context.InternalContextAdapterImpl;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeSingleton;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTSetDirective;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents.Span;
+import org.sakaiproject.vtlgen.api.ScaffoldListener.Phase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Processes a file as a velocity template from an input stream and saves it to the output stream.
+ * <p>
+ * Parsed templates are kept in a cache keyed by the SHA-256 of the template content, so the same
+ * template is parsed only once per JVM no matter how many times, or by how many runners, it is
+ * processed.
+ * <p>
+ * Rendered output is cached as well, keyed by the template digest and the values of only the
+ * variables the template references, so a template rendered again with the same values for
+ * those variables is copied rather than rendered. Templates that have side effects on the
+ * context or read other resources (#set, #parse, #include), or that reference values other
+ * than strings, numbers and booleans, are always rendered.
+ * <p>
+ * Both caches are shared by all processors and bounded by their total size in bytes. The
+ * rendered output may also be cached in a directory, which is pruned of entries that were
+ * not used for {@value #MAX_RENDER_CACHE_AGE_DAYS} days, and then of the least recently used
+ * ones down to {@value #MAX_RENDER_CACHE_DIR_BYTES} bytes, the first time it is used by
+ * the JVM.
+ * <p>
+ * Templates that do nothing but substitute plain variables and test them with #if, which is
+ * most of them, are compiled into a {@link SubstitutionTemplate} once they are parsed, and
+ * rendered from it rather than by velocity. The templates of the bundled packages are
+ * compiled when the plugin is built, so they are not even parsed.
  */
 public class VelocityFileProcessor {
 
+  public final static String PROP_RENDER_CACHE_DIR = "vtlg.renderCacheDir";
+  
+  private final static String TEMPLATE_NAME = "VelocityFileProcessor";
+  private final static int MAX_CACHED_RENDER_BYTES = 64 * 1024;
+  private final static long MAX_RENDER_CACHE_AGE_DAYS = 30;
+  private final static long MAX_RENDER_CACHE_DIR_BYTES = 64L * 1024 * 1024;
+  // the heap used by a template, per byte of its source, as measured with velocity 1.5
+  private final static int PARSE_TREE_BYTES_PER_BYTE = 40;
+  private final static int SUBSTITUTION_BYTES_PER_BYTE = 4;
+  private final static TemplateCache<ParsedTemplate> parsedTemplates =
+      new TemplateCache<ParsedTemplate>(256, 16L * 1024 * 1024);
+  private final static TemplateCache<byte[]> renderedTemplates =
+      new TemplateCache<byte[]>(1024, 16L * 1024 * 1024);
+  private final static Set<File> prunedRenderCacheDirs = new HashSet<File>();
+  
+  private final ResourceLimits limits;
+  private final File renderCacheDir;
+
+  public VelocityFileProcessor() {
+    this(ResourceLimits.defaults());
+  }
+
+  /**
+   * @param limits The limits on render time and output size applied to each processed file
+   */
+  public VelocityFileProcessor(ResourceLimits limits) {
+    this(limits, null);
+  }
+
+  /**
+   * @param limits The limits on render time and output size applied to each processed file
+   * @param renderCacheDir The directory in which rendered output is cached in addition to
+   * memory, or {@code null} to only cache it in memory
+   */
+  public VelocityFileProcessor(ResourceLimits limits, File renderCacheDir) {
+    this.limits = limits;
+    this.renderCacheDir = renderCacheDir;
+  }
+
   public void processFile(InputStream in, OutputStream out, Map<String, Object> context) {
-    Reader reader = null;
+    Span span = ScaffoldEvents.begin(Phase.TEMPLATE_RENDERED);
     Writer writer = null;
     try {
-      reader = new InputStreamReader(in);
-      writer = new OutputStreamWriter(out);
-      Velocity.evaluate(new VelocityContext(context), writer, "VelocityFileProcessor", reader);
+      ParsedTemplate template = getTemplate(IOUtils.toByteArray(in));
+      String renderKey = getRenderKey(template, context);
+      
+      if (renderKey == null) {
+        LimitedOutputStream limited = new LimitedOutputStream(out, "template",
+            limits.getMaxOutputBytes(), limits.getMaxRenderMillis());
+        writer = render(template, context, limited);
+        ScaffoldEvents.templateRendered(span, template.digest, limited.getWritten(), false);
+        return;
+      }
+      
+      byte[] rendered = getRendered(renderKey);
+      boolean cached = (rendered != null);
+      if (rendered == null) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writer = render(template, context, new LimitedOutputStream(buffer, "template",
+            limits.getMaxOutputBytes(), limits.getMaxRenderMillis()));
+        rendered = buffer.toByteArray();
+        putRendered(renderKey, rendered);
+      }
+      out.write(rendered);
+      ScaffoldEvents.templateRendered(span, template.digest, rendered.length, cached);
     } catch (ParseErrorException e) {
       throw new RuntimeException(e);
     } catch (MethodInvocationException e) {
@@ -54,8 +159,306 @@ public class VelocityFileProcessor {
     } catch (IOException e) {
       throw new RuntimeException(e);
     } finally {
-      IOUtils.closeQuietly(reader);
+      IOUtils.closeQuietly(in);
       IOUtils.closeQuietly(writer);
+      IOUtils.closeQuietly(out);
+    }
+  }
+  
+  /**
+   * Get the names of the variables the given template references, parsing it only if it is
+   * not already cached.
+   * 
+   * @param in The template, which is closed
+   * @return The names of the variables, or {@code null} if the output of the template may
+   * depend on more than their values (e.g., it uses #set).
+   */
+  public Set<String> getReferences(InputStream in) {
+    try {
+      Set<String> references = getTemplate(IOUtils.toByteArray(in)).references;
+      return (references == null) ? null : Collections.unmodifiableSet(references);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+  
+  /**
+   * Render the template into the given stream, and flush it.
+   * 
+   * @param template
+   * @param context
+   * @param out
+   * @return The writer used to render the template, if any, so it can be closed.
+   * @throws IOException
+   */
+  private Writer render(ParsedTemplate template, Map<String, Object> context,
+      LimitedOutputStream out) throws IOException {
+    if (template.substitution != null) {
+      template.substitution.render(context, out);
+      out.flush();
+      return null;
+    }
+    
+    Writer writer = new OutputStreamWriter(out);
+    InternalContextAdapterImpl ica = new InternalContextAdapterImpl(new LimitedContext(context,
+        "template", limits.getMaxRenderMillis(), limits.getMaxLoopIterations()));
+    ica.pushCurrentTemplateName(TEMPLATE_NAME);
+    try {
+      template.node.render(ica, writer);
+    } finally {
+      ica.popCurrentTemplateName();
+    }
+    writer.flush();
+    return writer;
+  }
+  
+  /**
+   * Get the parsed and initialized template for the given content, parsing it only if it is
+   * not already cached.
+   * 
+   * @param content
+   * @return
+   */
+  private ParsedTemplate getTemplate(byte[] content) {
+    String digest = PackageUtil.toHex(PackageUtil.sha256().digest(content));
+    ParsedTemplate template = parsedTemplates.get(digest);
+    if (template == null) {
+      template = getPrecompiledTemplate(digest, content.length);
+    }
+    if (template == null) {
+      SimpleNode node = null;
+      SubstitutionTemplate substitution = null;
+      try {
+        node = RuntimeSingleton.parse(new InputStreamReader(new ByteArrayInputStream(content)),
+            TEMPLATE_NAME);
+        LimitedIntegerRange.replaceRanges(node);
+        substitution = SubstitutionTemplate.compile(node);
+        InternalContextAdapterImpl ica = new InternalContextAdapterImpl(new VelocityContext());
+        ica.pushCurrentTemplateName(TEMPLATE_NAME);
+        try {
+          node.init(ica, RuntimeSingleton.getRuntimeServices());
+        } finally {
+          ica.popCurrentTemplateName();
+        }
+      } catch (ParseException e) {
+        throw new RuntimeException(new ParseErrorException(e));
+      } catch (TemplateInitException e) {
+        throw new RuntimeException(new ParseErrorException(e));
+      }
+      
+      Set<String> references = new TreeSet<String>();
+      boolean cacheable = collectReferences(node, references);
+      // a substitution template is rendered without its parse tree, so it is not kept
+      if (substitution != null) {
+        template = new ParsedTemplate(digest, null, substitution, cacheable ? references : null);
+        parsedTemplates.put(digest, template, (long) content.length * SUBSTITUTION_BYTES_PER_BYTE);
+      } else {
+        template = new ParsedTemplate(digest, node, null, cacheable ? references : null);
+        parsedTemplates.put(digest, template, (long) content.length * PARSE_TREE_BYTES_PER_BYTE);
+      }
+    }
+    return template;
+  }
+  
+  /**
+   * @param digest
+   * @param length The length of the template
+   * @return The template compiled when the plugin was built, if the template is one of those
+   * of a bundled package, or {@code null}.
+   */
+  private ParsedTemplate getPrecompiledTemplate(String digest, int length) {
+    SubstitutionTemplate substitution = null;
+    try {
+      substitution = TemplatePrecompiler.load(digest);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (substitution == null) {
+      return null;
+    }
+    ParsedTemplate template = new ParsedTemplate(digest, null, substitution,
+        substitution.getVariables());
+    parsedTemplates.put(digest, template, (long) length * SUBSTITUTION_BYTES_PER_BYTE);
+    return template;
+  }
+  
+  /**
+   * Collect the names of the variables referenced under the given node.
+   * 
+   * @param node
+   * @param references
+   * @return Whether or not the output of the template depends only on those variables.
+   */
+  private boolean collectReferences(Node node, Set<String> references) {
+    if (node instanceof ASTReference) {
+      references.add(((ASTReference) node).getRootString());
+    } else if (node instanceof ASTSetDirective) {
+      return false;
+    } else if (node instanceof ASTDirective) {
+      String name = ((ASTDirective) node).getDirectiveName();
+      if ("parse".equals(name) || "include".equals(name)) {
+        return false;
+      }
+    } else if (node instanceof ASTStringLiteral) {
+      // interpolated strings hold their references outside of the node tree
+      String literal = ((ASTStringLiteral) node).literal();
+      if (literal.startsWith("\"") && (literal.indexOf('$') != -1 || literal.indexOf('#') != -1)) {
+        return false;
+      }
+    }
+    
+    for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+      if (!collectReferences(node.jjtGetChild(i), references)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * @param template
+   * @param context
+   * @return The key of the rendered output of the template for the given context, or
+   * {@code null} if its output may not be cached.
+   */
+  private String getRenderKey(ParsedTemplate template, Map<String, Object> context) {
+    if (template.references == null) {
+      return null;
+    }
+    
+    StringBuilder key = new StringBuilder(template.digest);
+    for (String reference : template.references) {
+      Object value = context.get(reference);
+      if (value != null && !(value instanceof String || value instanceof Number
+          || value instanceof Boolean)) {
+        return null;
+      }
+      // the class is part of the key, since velocity tells Boolean.FALSE from "false", and
+      // the length keeps a value from running into the next reference
+      key.append('\n').append(reference);
+      if (value != null) {
+        String string = value.toString();
+        key.append('=').append(value.getClass().getName()).append(':').append(string.length())
+            .append(':').append(string);
+      }
+    }
+    
+    try {
+      return PackageUtil.toHex(PackageUtil.sha256().digest(key.toString().getBytes("UTF-8")));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  private byte[] getRendered(String renderKey) throws IOException {
+    byte[] rendered = renderedTemplates.get(renderKey);
+    if (rendered == null && renderCacheDir != null) {
+      pruneRenderCacheDir(renderCacheDir);
+      File cached = new File(renderCacheDir, renderKey);
+      if (cached.isFile()) {
+        try {
+          rendered = FileUtils.readFileToByteArray(cached);
+        } catch (FileNotFoundException e) {
+          // pruned by another build since it was found
+          return null;
+        }
+        // the modification time is when the entry was last used, by which the entries are pruned
+        cached.setLastModified(System.currentTimeMillis());
+        if (rendered.length <= MAX_CACHED_RENDER_BYTES) {
+          renderedTemplates.put(renderKey, rendered, rendered.length);
+        }
+      }
+    }
+    return rendered;
+  }
+  
+  private void putRendered(String renderKey, byte[] rendered) throws IOException {
+    if (rendered.length <= MAX_CACHED_RENDER_BYTES) {
+      renderedTemplates.put(renderKey, rendered, rendered.length);
+    }
+    if (renderCacheDir != null) {
+      pruneRenderCacheDir(renderCacheDir);
+      renderCacheDir.mkdirs();
+      File tmp = File.createTempFile(renderKey, ".tmp", renderCacheDir);
+      FileUtils.writeByteArrayToFile(tmp, rendered);
+      if (!tmp.renameTo(new File(renderCacheDir, renderKey))) {
+        tmp.delete();
+      }
+    }
+  }
+  
+  /**
+   * Remove the entries of the given render cache directory that were not used for
+   * {@value #MAX_RENDER_CACHE_AGE_DAYS} days, and then the least recently used entries until
+   * the rest fit in {@value #MAX_RENDER_CACHE_DIR_BYTES} bytes. This is done once per JVM
+   * for each directory.
+   * 
+   * @param dir
+   */
+  static void pruneRenderCacheDir(File dir) {
+    synchronized (prunedRenderCacheDirs) {
+      if (!prunedRenderCacheDirs.add(dir.getAbsoluteFile())) {
+        return;
+      }
+    }
+    
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    
+    long oldest = System.currentTimeMillis() - MAX_RENDER_CACHE_AGE_DAYS * 24 * 60 * 60 * 1000;
+    List<File> kept = new ArrayList<File>();
+    long bytes = 0;
+    for (File file : files) {
+      if (!file.isFile()) {
+        continue;
+      }
+      if (file.lastModified() < oldest) {
+        file.delete();
+      } else {
+        kept.add(file);
+        bytes += file.length();
+      }
+    }
+    
+    if (bytes > MAX_RENDER_CACHE_DIR_BYTES) {
+      Collections.sort(kept, new Comparator<File>() {
+        public int compare(File a, File b) {
+          return (a.lastModified() < b.lastModified()) ? -1
+              : (a.lastModified() == b.lastModified()) ? 0 : 1;
+        }
+      });
+      for (Iterator<File> it = kept.iterator(); bytes > MAX_RENDER_CACHE_DIR_BYTES
+          && it.hasNext();) {
+        File file = it.next();
+        long length = file.length();
+        if (file.delete()) {
+          bytes -= length;
+        }
+      }
+    }
+  }
+  
+  /**
+   * A parsed template, compiled to a substitution template if it is one, with the variables it references if its output may be cached.
+   * Templates compiled when the plugin was built have no parse tree.
+   */
+  private static class ParsedTemplate {
+    
+    private final String digest;
+    private final SimpleNode node;
+    private final SubstitutionTemplate substitution;
+    private final Set<String> references;
+    
+    private ParsedTemplate(String digest, SimpleNode node, SubstitutionTemplate substitution,
+        Set<String> references) {
+      this.digest = digest;
+      this.node = node;
+      this.substitution = substitution;
+      this.references = references;
     }
   }
 }
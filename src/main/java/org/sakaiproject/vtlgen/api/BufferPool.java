@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-thread buffers for copying package entries, in power-of-two sizes from
+ * {@value #MIN_SIZE} bytes to {@value #MAX_SIZE} bytes. An entry is copied with the
+ * smallest buffer that holds it whole, up to the largest, so tiny files do not pay for a
+ * large buffer and large files are copied in few large writes. Each size is allocated once
+ * per thread, no matter how many entries or packages are extracted.
+ */
+class BufferPool {
+
+  static final int MIN_SIZE = 8 * 1024;
+  static final int MAX_SIZE = 1024 * 1024;
+  
+  private static final int MIN_SHIFT = 13;
+  private static final int MAX_SHIFT = 20;
+  
+  private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+    @Override
+    protected ByteBuffer[] initialValue() {
+      return new ByteBuffer[MAX_SHIFT - MIN_SHIFT + 1];
+    }
+  };
+  
+  private BufferPool() {
+  }
+  
+  /**
+   * Get a cleared buffer of this thread for content of the given size. The buffer is backed
+   * by an array, so it can be filled from a stream and written to a channel without copying.
+   * It may be used until the next call on the same thread.
+   * 
+   * @param size The size of the content, or -1 if it is unknown
+   * @return
+   */
+  static ByteBuffer get(long size) {
+    int shift = MIN_SHIFT;
+    long capacity = (size < 0) ? 64 * 1024 : size;
+    while (shift < MAX_SHIFT && (1L << shift) < capacity) {
+      shift++;
+    }
+    
+    ByteBuffer[] buffers = BUFFERS.get();
+    ByteBuffer buffer = buffers[shift - MIN_SHIFT];
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(1 << shift);
+      buffers[shift - MIN_SHIFT] = buffer;
+    }
+    buffer.clear();
+    return buffer;
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import org.sakaiproject.vtlgen.api.ScaffoldListener.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commits each scaffold event as a Java Flight Recorder event, so that a run recorded with
+ * {@code -XX:StartFlightRecording} or from JDK Mission Control shows the packages, entries,
+ * templates and files, with their durations, in the Scaffold category. Each event is begun
+ * when its phase begins, so its start time and duration are those of the work itself.
+ * <p>
+ * The plugin is built for JVMs that predate JFR, so the events are defined at run time with
+ * {@code jdk.jfr.EventFactory}, and called through reflection. An event is only created when
+ * a recording has enabled its type.
+ * <p>
+ * Defining the events slows the start of a run down noticeably, so the listener is only
+ * registered by default when the Flight Recorder was started with the JVM. To record a run
+ * from JDK Mission Control instead, register it with {@code -Dvtlg.eventListener=jfr}.
+ */
+final class JfrScaffoldListener implements ScaffoldListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JfrScaffoldListener.class);
+  private static final String EVENT_PREFIX = "org.sakaiproject.vtlgen.";
+  private static final String CATEGORY = "Scaffold";
+  
+  private final JfrEventType packageGenerated;
+  private final JfrEventType entryExtracted;
+  private final JfrEventType templateRendered;
+  private final JfrEventType fileProcessed;
+  
+  private JfrScaffoldListener() throws Exception {
+    packageGenerated = new JfrEventType("PackageGenerated", "Package Generated",
+        new Field(String.class, "packageUrl", "Package URL", null, null),
+        new Field(String.class, "digest", "Digest", null, null),
+        new Field(int.class, "generated", "Generated", null, null));
+    entryExtracted = new JfrEventType("EntryExtracted", "Entry Extracted",
+        new Field(String.class, "packageName", "Package", null, null),
+        new Field(String.class, "entryName", "Entry", null, null),
+        new Field(long.class, "bytes", "Bytes", "jdk.jfr.DataAmount", "BYTES"));
+    templateRendered = new JfrEventType("TemplateRendered", "Template Rendered",
+        new Field(String.class, "templateDigest", "Template Digest", null, null),
+        new Field(long.class, "bytes", "Bytes", "jdk.jfr.DataAmount", "BYTES"),
+        new Field(boolean.class, "cached", "Cached", null, null));
+    fileProcessed = new JfrEventType("FileProcessed", "File Processed",
+        new Field(String.class, "source", "Source", null, null),
+        new Field(String.class, "target", "Target", null, null));
+  }
+  
+  /**
+   * @return Whether or not this JVM has JFR, and it has been started, e.g. by
+   * {@code -XX:StartFlightRecording}.
+   */
+  static boolean isRecorderStarted() {
+    try {
+      Method isInitialized = Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized");
+      return ((Boolean) isInitialized.invoke(null)).booleanValue();
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (Exception e) {
+      LOGGER.debug("Could not tell whether the Flight Recorder is started: {}", e.toString());
+      return false;
+    }
+  }
+  
+  /**
+   * Define the events. This takes a few hundred milliseconds, so it is only done when they
+   * are wanted.
+   * 
+   * @return The listener, or {@code null} if this JVM does not have JFR.
+   */
+  static ScaffoldListener create() {
+    try {
+      Class.forName("jdk.jfr.EventFactory");
+    } catch (ClassNotFoundException e) {
+      return null;
+    }
+    
+    try {
+      return new JfrScaffoldListener();
+    } catch (Exception e) {
+      LOGGER.warn("Could not define the scaffold JFR events: {}", e.toString());
+      return null;
+    }
+  }
+  
+  public Object begin(Phase phase) {
+    switch (phase) {
+    case PACKAGE_GENERATED:
+      return packageGenerated.begin();
+    case ENTRY_EXTRACTED:
+      return entryExtracted.begin();
+    case TEMPLATE_RENDERED:
+      return templateRendered.begin();
+    default:
+      return fileProcessed.begin();
+    }
+  }
+  
+  public void packageGenerated(Object state, String packageUrl, String digest, int generated,
+      long nanos) {
+    packageGenerated.commit(state, packageUrl, digest, generated);
+  }
+  
+  public void entryExtracted(Object state, String packageName, String entryName, long bytes,
+      long nanos) {
+    entryExtracted.commit(state, packageName, entryName, bytes);
+  }
+  
+  public void templateRendered(Object state, String templateDigest, long bytes, boolean cached,
+      long nanos) {
+    templateRendered.commit(state, templateDigest, bytes, cached);
+  }
+  
+  public void fileProcessed(Object state, String source, String target, long nanos) {
+    fileProcessed.commit(state, source, target);
+  }
+  
+  /**
+   * A field of an event type, with its label and an optional unit annotation.
+   */
+  private static class Field {
+    
+    private final Class<?> type;
+    private final String name;
+    private final String label;
+    private final String unitAnnotation;
+    private final String unit;
+    
+    private Field(Class<?> type, String name, String label, String unitAnnotation, String unit) {
+      this.type = type;
+      this.name = name;
+      this.label = label;
+      this.unitAnnotation = unitAnnotation;
+      this.unit = unit;
+    }
+  }
+  
+  /**
+   * An event type defined through {@code jdk.jfr.EventFactory}.
+   */
+  private static class JfrEventType {
+    
+    private final String name;
+    private final Object factory;
+    private final Object eventType;
+    private final Method newEvent;
+    private final Method isEnabled;
+    private final Method begin;
+    private final Method set;
+    private final Method end;
+    private final Method commit;
+    private volatile boolean failed;
+    
+    private JfrEventType(String name, String label, Field... fields) throws Exception {
+      this.name = EVENT_PREFIX + name;
+      Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+      Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class,
+          Object.class);
+      Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class,
+          String.class, List.class);
+      
+      List<Object> annotations = new ArrayList<Object>();
+      annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Name"), this.name));
+      annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Label"), label));
+      annotations.add(annotationElement.newInstance(annotation("jdk.jfr.Category"),
+          new String[] { CATEGORY }));
+      
+      List<Object> descriptors = new ArrayList<Object>();
+      for (Field field : fields) {
+        List<Object> fieldAnnotations = new ArrayList<Object>();
+        fieldAnnotations.add(annotationElement.newInstance(annotation("jdk.jfr.Label"),
+            field.label));
+        if (field.unitAnnotation != null) {
+          fieldAnnotations.add(annotationElement.newInstance(annotation(field.unitAnnotation),
+              field.unit));
+        }
+        descriptors.add(valueDescriptor.newInstance(field.type, field.name, fieldAnnotations));
+      }
+      
+      factory = factoryClass.getMethod("create", List.class, List.class).invoke(null,
+          annotations, descriptors);
+      eventType = factoryClass.getMethod("getEventType").invoke(factory);
+      newEvent = factoryClass.getMethod("newEvent");
+      isEnabled = eventTypeClass.getMethod("isEnabled");
+      begin = eventClass.getMethod("begin");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      end = eventClass.getMethod("end");
+      commit = eventClass.getMethod("commit");
+    }
+    
+    /**
+     * Create and begin an event, if a recording has enabled this type.
+     * 
+     * @return The event, or {@code null}.
+     */
+    private Object begin() {
+      if (failed) {
+        return null;
+      }
+      
+      try {
+        if (!((Boolean) isEnabled.invoke(eventType)).booleanValue()) {
+          return null;
+        }
+        Object event = newEvent.invoke(factory);
+        begin.invoke(event);
+        return event;
+      } catch (Exception e) {
+        disable(e);
+        return null;
+      }
+    }
+    
+    /**
+     * End the given event, and commit it with the given field values.
+     * 
+     * @param event The event returned by {@link #begin()}, or {@code null}
+     * @param values
+     */
+    private void commit(Object event, Object... values) {
+      if (event == null || failed) {
+        return;
+      }
+      
+      try {
+        for (int i = 0; i < values.length; i++) {
+          set.invoke(event, i, values[i]);
+        }
+        end.invoke(event);
+        commit.invoke(event);
+      } catch (Exception e) {
+        disable(e);
+      }
+    }
+    
+    private void disable(Exception e) {
+      // do not fail the run, nor flood the log, because of the profiler
+      failed = true;
+      LOGGER.warn("Could not record the JFR event {}, it is disabled: {}", name, e.toString());
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation> annotation(String name)
+        throws ClassNotFoundException {
+      return (Class<? extends Annotation>) Class.forName(name);
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates and applies byte-level deltas between two versions of a package.
+ * <p>
+ * A delta starts with a {@value #MAGIC} line, followed by the digests of the base and target
+ * packages and the length of the target. Then comes a sequence of instructions, each either
+ * copying a range of bytes of the base package or inserting literal bytes, which together
+ * reproduce the target package exactly. Matches are looked for in blocks of
+ * {@value #BLOCK_SIZE} bytes, which is the record size of tar, so the entries that did not
+ * change between two tar packages are copied from the base.
+ * <p>
+ * Applying a delta hashes the new package while it is written, and fails unless the result
+ * has the target digest declared by the delta, so a package produced by a delta is identical
+ * to the published one.
+ */
+public class PackageDelta {
+
+  public static final String MAGIC = "vtlg-delta 1";
+  
+  private static final int BLOCK_SIZE = 512;
+  private static final int MAX_LITERAL = 64 * 1024;
+  private static final int OP_END = 0;
+  private static final int OP_COPY = 1;
+  private static final int OP_LITERAL = 2;
+  
+  /**
+   * Create the delta that turns the base package into the target package.
+   * 
+   * @param base The base package
+   * @param baseDigest The published digest of the base package
+   * @param target The target package
+   * @param targetDigest The published digest of the target package
+   * @param delta The file to which the delta is written
+   * @throws IOException
+   */
+  public static void create(File base, String baseDigest, File target, String targetDigest,
+      File delta) throws IOException {
+    RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+    InputStream in = null;
+    DataOutputStream out = null;
+    try {
+      Map<Integer, Long> index = indexBlocks(baseFile);
+      in = new BufferedInputStream(new FileInputStream(target));
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta)));
+      out.write((MAGIC + "\n").getBytes("UTF-8"));
+      out.writeUTF(baseDigest);
+      out.writeUTF(targetDigest);
+      out.writeLong(target.length());
+      
+      Instructions instructions = new Instructions(out);
+      byte[] block = new byte[BLOCK_SIZE];
+      byte[] baseBlock = new byte[BLOCK_SIZE];
+      int count;
+      while ((count = IOUtils.read(in, block)) > 0) {
+        if (count == BLOCK_SIZE) {
+          // continue the current copy if the next base block matches, otherwise look it up
+          long next = instructions.nextCopyOffset();
+          if (next >= 0 && matches(baseFile, next, block, baseBlock)) {
+            instructions.copy(next);
+            continue;
+          }
+          Long offset = index.get(Arrays.hashCode(block));
+          if (offset != null && matches(baseFile, offset, block, baseBlock)) {
+            instructions.copy(offset);
+            continue;
+          }
+        }
+        instructions.literal(block, count);
+      }
+      instructions.finish();
+    } finally {
+      IOUtils.closeQuietly(in);
+      IOUtils.closeQuietly(out);
+      baseFile.close();
+    }
+  }
+  
+  /**
+   * Apply the delta read from the given stream to the base package, writing the new package
+   * to the output file. The delta is applied while it is streamed, and the new package is
+   * hashed while it is written.
+   * 
+   * @param base The base package
+   * @param baseDigest The published digest of the base package, which the delta must be relative to
+   * @param delta The stream from which the delta is read
+   * @param output The file to which the new package is written
+   * @param limits The budget for the bytes of the new package
+   * @return The digest of the new package, as computed from its bytes.
+   * @throws IOException If the delta does not apply to the base, reads outside of it, exceeds
+   * the limits, or produces a package that does not have the digest the delta declares
+   */
+  public static String apply(File base, String baseDigest, InputStream delta, File output,
+      ResourceLimits limits) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+    byte[] magic = new byte[MAGIC.length() + 1];
+    if (IOUtils.read(in, magic) != magic.length
+        || !(MAGIC + "\n").equals(new String(magic, "UTF-8"))) {
+      throw new IOException("Package delta does not start with " + MAGIC + ".");
+    }
+    
+    String deltaBase = in.readUTF();
+    String deltaTarget = in.readUTF();
+    long targetLength = in.readLong();
+    if (!deltaBase.equalsIgnoreCase(baseDigest)) {
+      throw new IOException(String.format("Package delta is relative to %s, not to %s.",
+          deltaBase, baseDigest));
+    }
+    if (targetLength < 0 || ResourceLimits.exceeds(limits.getMaxExpandedBytes(), targetLength)) {
+      throw new IOException(String.format("Package delta produces %d bytes, where the maximum "
+          + "is %d.", targetLength, limits.getMaxExpandedBytes()));
+    }
+    
+    MessageDigest md = PackageUtil.sha256();
+    RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+    DigestOutputStream out = new DigestOutputStream(new BufferedOutputStream(
+        new FileOutputStream(output)), md);
+    try {
+      long baseLength = baseFile.length();
+      byte[] data = new byte[MAX_LITERAL];
+      long written = 0;
+      int op;
+      while ((op = in.readUnsignedByte()) != OP_END) {
+        if (op != OP_COPY && op != OP_LITERAL) {
+          throw new IOException("Package delta has an unknown instruction " + op + ".");
+        }
+        long offset = (op == OP_COPY) ? in.readLong() : 0;
+        int length = in.readInt();
+        if (length < 0 || length > targetLength - written) {
+          throw new IOException("Package delta produces more bytes than it declares.");
+        }
+        if (op == OP_COPY && (offset < 0 || offset > baseLength - length)) {
+          throw new IOException(String.format("Package delta copies %d bytes at %d, outside of "
+              + "the base package.", length, offset));
+        }
+        
+        if (op == OP_COPY) {
+          baseFile.seek(offset);
+        }
+        for (int remaining = length; remaining > 0;) {
+          int count = Math.min(remaining, data.length);
+          if (op == OP_COPY) {
+            baseFile.readFully(data, 0, count);
+          } else {
+            in.readFully(data, 0, count);
+          }
+          out.write(data, 0, count);
+          remaining -= count;
+        }
+        written += length;
+      }
+      
+      if (written != targetLength) {
+        throw new IOException(String.format("Package delta produced %d bytes instead of %d.",
+            written, targetLength));
+      }
+    } finally {
+      IOUtils.closeQuietly(out);
+      baseFile.close();
+    }
+    
+    String digest = PackageUtil.toHex(md.digest());
+    if (!digest.equalsIgnoreCase(deltaTarget)) {
+      throw new IOException(String.format("Package delta from %s produced a package with digest "
+          + "%s instead of %s.", deltaBase, digest, deltaTarget));
+    }
+    return digest;
+  }
+  
+  /**
+   * @param base
+   * @return The offset of the first occurrence of each whole block of the base package, keyed
+   * by the hash code of the block content.
+   * @throws IOException
+   */
+  private static Map<Integer, Long> indexBlocks(RandomAccessFile base) throws IOException {
+    Map<Integer, Long> index = new HashMap<Integer, Long>();
+    byte[] block = new byte[BLOCK_SIZE];
+    long blocks = base.length() / BLOCK_SIZE;
+    base.seek(0);
+    for (long i = 0; i < blocks; i++) {
+      base.readFully(block);
+      Integer hash = Arrays.hashCode(block);
+      if (!index.containsKey(hash)) {
+        index.put(hash, i * BLOCK_SIZE);
+      }
+    }
+    return index;
+  }
+  
+  private static boolean matches(RandomAccessFile base, long offset, byte[] block,
+      byte[] baseBlock) throws IOException {
+    if (offset + BLOCK_SIZE > base.length()) {
+      return false;
+    }
+    base.seek(offset);
+    base.readFully(baseBlock);
+    return Arrays.equals(block, baseBlock);
+  }
+  
+  /**
+   * Writes the instructions of a delta, merging adjacent copies and literals.
+   */
+  private static class Instructions {
+    
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+    private long copyOffset = -1;
+    private int copyLength;
+    
+    private Instructions(DataOutputStream out) {
+      this.out = out;
+    }
+    
+    /**
+     * @return The offset in the base that would continue the current copy, or -1 if the last
+     * instruction is not a copy.
+     */
+    private long nextCopyOffset() {
+      return (copyOffset == -1) ? -1 : copyOffset + copyLength;
+    }
+    
+    private void copy(long offset) throws IOException {
+      if (offset != nextCopyOffset() || copyLength > Integer.MAX_VALUE - BLOCK_SIZE) {
+        flush();
+        copyOffset = offset;
+      }
+      copyLength += BLOCK_SIZE;
+    }
+    
+    private void literal(byte[] data, int length) throws IOException {
+      if (copyOffset != -1) {
+        flush();
+      }
+      literal.write(data, 0, length);
+      if (literal.size() >= MAX_LITERAL) {
+        flush();
+      }
+    }
+    
+    private void finish() throws IOException {
+      flush();
+      out.writeByte(OP_END);
+    }
+    
+    private void flush() throws IOException {
+      if (copyOffset != -1) {
+        out.writeByte(OP_COPY);
+        out.writeLong(copyOffset);
+        out.writeInt(copyLength);
+        copyOffset = -1;
+        copyLength = 0;
+      }
+      if (literal.size() > 0) {
+        out.writeByte(OP_LITERAL);
+        out.writeInt(literal.size());
+        literal.writeTo(out);
+        literal.reset();
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The digests of a package that was extracted: the SHA-256 of the package archive as it was
+ * fetched, and the SHA-256 of each file entry, keyed by the entry name. The entry digests are
+ * suitable as cache keys, or to determine which entries changed between two versions of a
+ * package.
+ */
+public class PackageManifest {
+
+  private final String digest;
+  private final Map<String, String> entryDigests;
+
+  /**
+   * @param digest The hex-encoded SHA-256 of the package archive
+   * @param entryDigests The hex-encoded SHA-256 of each file entry, keyed by entry name
+   */
+  public PackageManifest(String digest, Map<String, String> entryDigests) {
+    this.digest = digest;
+    this.entryDigests = Collections.unmodifiableMap(entryDigests);
+  }
+
+  /**
+   * @return The hex-encoded SHA-256 of the package archive.
+   */
+  public String getDigest() {
+    return digest;
+  }
+
+  /**
+   * @return The hex-encoded SHA-256 of each file entry, keyed by the entry name.
+   */
+  public Map<String, String> getEntryDigests() {
+    return entryDigests;
+  }
+
+  /**
+   * @param entryName
+   * @return The hex-encoded SHA-256 of the given entry, or {@code null} if there is no such file entry.
+   */
+  public String getEntryDigest(String entryName) {
+    return entryDigests.get(entryName);
+  }
+}
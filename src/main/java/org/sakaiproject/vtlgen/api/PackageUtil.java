@@ -19,13 +19,27 @@ package org.sakaiproject.vtlgen.api;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.vtlgen.api.ScaffoldEvents.Span;
+import org.sakaiproject.vtlgen.api.ScaffoldListener.Phase;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  *
@@ -34,40 +48,285 @@ public class PackageUtil {
 
   public static final int BUFFER_MAX = 2048;
   
-  public static void untar(String fileName, String targetPath) throws IOException {
-    File tarArchiveFile = new File(fileName);
-    BufferedOutputStream dest = null;
-    FileInputStream tarArchiveStream = new FileInputStream(tarArchiveFile);
-    TarArchiveInputStream tis = new TarArchiveInputStream(new BufferedInputStream(tarArchiveStream));
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  
+  // File.setExecutable is only available from Java 6
+  private static final Method SET_EXECUTABLE = findSetExecutable();
+  
+  public static Map<String, String> untar(String fileName, String targetPath) throws IOException {
+    return untar(fileName, targetPath, ResourceLimits.defaults());
+  }
+  
+  /**
+   * Extract the given tar file into the target directory, enforcing the given resource limits
+   * while the archive is streamed. Extraction stops at the first entry that would escape the
+   * target directory or exceed a limit.
+   * 
+   * @param fileName The tar file to extract
+   * @param targetPath The directory into which the package is extracted
+   * @param limits The budget for the number of entries, expanded bytes and depth
+   * @return The hex-encoded SHA-256 of each extracted file, keyed by entry name. The digests
+   * are computed while the entries are written, not in a separate pass.
+   * @throws IOException If the archive could not be read or written, or it violates a limit
+   */
+  public static Map<String, String> untar(String fileName, String targetPath,
+      ResourceLimits limits) throws IOException {
+    InputStream in = new FileInputStream(fileName);
+    try {
+      return untar(in, fileName, targetPath, limits);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+  
+  /**
+   * Extract the tar archive read from the given stream into the target directory, in the same
+   * manner as {@link #untar(String, String, ResourceLimits)}. The stream is read to its end,
+   * so that a digest computed over it covers the whole archive, but it is not closed.
+   * 
+   * @param in The stream from which the tar archive is read
+   * @param name The name of the archive, used in error messages
+   * @param targetPath The directory into which the package is extracted
+   * @param limits The budget for the number of entries, expanded bytes and depth
+   * @return The hex-encoded SHA-256 of each extracted file, keyed by entry name
+   * @throws IOException If the archive could not be read or written, or it violates a limit
+   */
+  public static Map<String, String> untar(InputStream in, String name, String targetPath,
+      ResourceLimits limits) throws IOException {
+    Extraction extraction = new Extraction(name, targetPath, limits);
+    TarArchiveInputStream tis = new TarArchiveInputStream(new BufferedInputStream(in));
     TarArchiveEntry entry = null;
+    while ((entry = tis.getNextTarEntry()) != null) {
+      if (entry.isSymbolicLink() || entry.isLink()) {
+        throw new IOException(String.format("Package entry %s is a link, which is not supported.",
+            entry.getName()));
+      }
+      
+      if (!entry.isDirectory() && !entry.isFile()) {
+        throw new IOException(String.format("Package entry %s is not a regular file or directory.",
+            entry.getName()));
+      }
+      
+      extraction.extract(entry.getName(), entry.isDirectory(), entry.getSize(),
+          entry.getModTime().getTime(), entry.getMode(), tis);
+    }
+    
+    // consume the end-of-archive padding as well
+    IOUtils.skip(in, Long.MAX_VALUE);
+    return extraction.entryDigests;
+  }
+  
+  /**
+   * Extract the zip (or jar) archive read from the given stream into the target directory,
+   * with the same resource limits as {@link #untar(String, String, ResourceLimits)}. The
+   * entries are read from their local headers as they are streamed, and the stream is read to
+   * its end, so that a digest computed over it covers the whole archive, but it is not closed.
+   * 
+   * @param in The stream from which the zip archive is read
+   * @param name The name of the archive, used in error messages
+   * @param targetPath The directory into which the package is extracted
+   * @param limits The budget for the number of entries, expanded bytes and depth
+   * @return The hex-encoded SHA-256 of each extracted file, keyed by entry name
+   * @throws IOException If the archive could not be read or written, has no entries, or it
+   * violates a limit
+   */
+  public static Map<String, String> unzip(InputStream in, String name, String targetPath,
+      ResourceLimits limits) throws IOException {
+    Extraction extraction = new Extraction(name, targetPath, limits);
+    ZipInputStream zis = new ZipInputStream(new BufferedInputStream(in));
+    ZipEntry entry = null;
+    while ((entry = zis.getNextEntry()) != null) {
+      extraction.extract(entry.getName(), entry.isDirectory(), entry.getSize(),
+          entry.getTime(), -1, zis);
+    }
+    
+    if (extraction.entries == 0) {
+      throw new IOException(String.format("Package %s is not a zip archive, or is empty.", name));
+    }
+    
+    // consume the central directory as well
+    IOUtils.skip(in, Long.MAX_VALUE);
+    return extraction.entryDigests;
+  }
+  
+  private static Method findSetExecutable() {
     try {
-        while ((entry = tis.getNextTarEntry()) != null) {
-            int count;
-            File outputFile = new File(targetPath, entry.getName());
-
-            if (entry.isDirectory()) { // entry is a directory
-                if (!outputFile.exists()) {
-                    outputFile.mkdirs();
-                }
-            } else { // entry is a file
-                byte[] data = new byte[BUFFER_MAX];
-                FileOutputStream fos = new FileOutputStream(outputFile);
-                dest = new BufferedOutputStream(fos, BUFFER_MAX);
-                while ((count = tis.read(data, 0, BUFFER_MAX)) != -1) {
-                    dest.write(data, 0, count);
-                }
-                dest.flush();
-                dest.close();
-            }
+      return File.class.getMethod("setExecutable", boolean.class, boolean.class);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * @return A new SHA-256 message digest.
+   */
+  public static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * @param bytes
+   * @return The lower-case hex encoding of the given bytes.
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+  
+  /**
+   * The state of one archive being extracted: the resources consumed so far and the digests
+   * of the entries written.
+   */
+  private static class Extraction {
+    
+    private final String name;
+    private final File targetDir;
+    private final ResourceLimits limits;
+    private final Map<String, String> entryDigests = new TreeMap<String, String>();
+    private final MessageDigest digest = sha256();
+    private int entries;
+    private long expandedBytes;
+    
+    private Extraction(String name, String targetPath, ResourceLimits limits) throws IOException {
+      this.name = name;
+      this.targetDir = new File(targetPath).getCanonicalFile();
+      this.limits = limits;
+    }
+    
+    /**
+     * Extract a single entry of the archive. Files are written through a channel from a
+     * pooled buffer sized for the entry, and large files are allocated at their full size
+     * before they are written.
+     * 
+     * @param entryName
+     * @param directory
+     * @param size The declared size of the entry, or -1 if unknown
+     * @param modTime The modification time of the entry, or 0 or less if unknown
+     * @param mode The unix mode of the entry, or -1 if unknown
+     * @param in The content of the entry, if it is a file
+     * @throws IOException
+     */
+    private void extract(String entryName, boolean directory, long size, long modTime, int mode,
+        InputStream in) throws IOException {
+      entries++;
+      if (ResourceLimits.exceeds(limits.getMaxEntries(), entries)) {
+        throw new IOException(String.format("Package %s has more than the maximum of %d entries.",
+            name, limits.getMaxEntries()));
+      }
+      
+      File outputFile = resolveEntry(entryName);
+      
+      if (directory) {
+        if (!outputFile.exists()) {
+          outputFile.mkdirs();
         }
-    } catch(Exception e) {
-        e.printStackTrace();
-    } finally {
-        if (dest != null) {
-            dest.flush();
-            dest.close();
+        return;
+      }
+      
+      if (ResourceLimits.exceeds(limits.getMaxExpandedBytes(), expandedBytes + Math.max(size, 0))) {
+        throw expandedBytesExceeded();
+      }
+      
+      Span span = ScaffoldEvents.begin(Phase.ENTRY_EXTRACTED);
+      long entryBytes = 0;
+      outputFile.getParentFile().mkdirs();
+      ByteBuffer buffer = BufferPool.get(size);
+      byte[] data = buffer.array();
+      boolean preallocate = size > BufferPool.MAX_SIZE;
+      RandomAccessFile file = preallocate ? new RandomAccessFile(outputFile, "rw") : null;
+      FileChannel channel = preallocate ? file.getChannel()
+          : new FileOutputStream(outputFile).getChannel();
+      try {
+        if (preallocate) {
+          file.setLength(size);
+        }
+        int count;
+        while ((count = in.read(data, 0, data.length)) != -1) {
+          entryBytes += count;
+          expandedBytes += count;
+          if (ResourceLimits.exceeds(limits.getMaxExpandedBytes(), expandedBytes)) {
+            throw expandedBytesExceeded();
+          }
+          digest.update(data, 0, count);
+          buffer.clear();
+          buffer.limit(count);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
         }
-        tis.close();
+        if (preallocate && entryBytes != size) {
+          file.setLength(entryBytes);
+        }
+      } finally {
+        IOUtils.closeQuietly(channel);
+        IOUtils.closeQuietly(file);
+      }
+      applyAttributes(outputFile, modTime, mode);
+      entryDigests.put(entryName, toHex(digest.digest()));
+      ScaffoldEvents.entryExtracted(span, name, entryName, entryBytes);
+    }
+    
+    /**
+     * Determine the location of the given entry under the target directory, verifying it
+     * stays within the target and the depth limit.
+     * 
+     * @param entryName
+     * @return
+     * @throws IOException
+     */
+    private File resolveEntry(String entryName) throws IOException {
+      int depth = 0;
+      for (String segment : entryName.split("/")) {
+        if (segment.length() > 0 && !".".equals(segment)) {
+          depth++;
+        }
+      }
+      
+      if (ResourceLimits.exceeds(limits.getMaxDepth(), depth)) {
+        throw new IOException(String.format("Package entry %s is deeper than the maximum depth of %d.",
+            entryName, limits.getMaxDepth()));
+      }
+      
+      File outputFile = new File(targetDir, entryName).getCanonicalFile();
+      if (!outputFile.equals(targetDir)
+          && !outputFile.getPath().startsWith(targetDir.getPath() + File.separator)) {
+        throw new IOException(String.format("Package entry %s resolves outside of the target directory.",
+            entryName));
+      }
+      
+      return outputFile;
+    }
+    
+    /**
+     * Apply the modification time and, where the JVM supports it, the executable bit of the
+     * entry to the extracted file.
+     */
+    private void applyAttributes(File outputFile, long modTime, int mode) {
+      if (modTime > 0) {
+        outputFile.setLastModified(modTime);
+      }
+      if (SET_EXECUTABLE != null && mode != -1 && (mode & 0111) != 0) {
+        try {
+          SET_EXECUTABLE.invoke(outputFile, Boolean.TRUE, (mode & 0011) == 0);
+        } catch (IllegalAccessException e) {
+          throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+    
+    private IOException expandedBytesExceeded() {
+      return new IOException(String.format("Package %s expands to more than the maximum of %d bytes.",
+          name, limits.getMaxExpandedBytes()));
     }
   }
 }
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import java.util.Map;
+
+/**
+ * The resource budget that a single package run may consume. Packages are extracted and
+ * rendered while streaming, and as soon as one of these limits is crossed the run is
+ * terminated with an error. A limit of 0 or less disables that particular check.
+ */
+public class ResourceLimits {
+
+  public static final String PROP_MAX_ENTRIES = "vtlg.maxEntries";
+  public static final String PROP_MAX_EXPANDED_BYTES = "vtlg.maxExpandedBytes";
+  public static final String PROP_MAX_DEPTH = "vtlg.maxDepth";
+  public static final String PROP_MAX_RENDER_MILLIS = "vtlg.maxRenderMillis";
+  public static final String PROP_MAX_OUTPUT_BYTES = "vtlg.maxOutputBytes";
+  public static final String PROP_MAX_LOOP_ITERATIONS = "vtlg.maxLoopIterations";
+
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+  public static final long DEFAULT_MAX_EXPANDED_BYTES = 256L * 1024 * 1024;
+  public static final int DEFAULT_MAX_DEPTH = 64;
+  public static final long DEFAULT_MAX_RENDER_MILLIS = 30000;
+  public static final long DEFAULT_MAX_OUTPUT_BYTES = 16L * 1024 * 1024;
+  public static final long DEFAULT_MAX_LOOP_ITERATIONS = 1000000;
+
+  private final int maxEntries;
+  private final long maxExpandedBytes;
+  private final int maxDepth;
+  private final long maxRenderMillis;
+  private final long maxOutputBytes;
+  private final long maxLoopIterations;
+
+  /**
+   * @param maxEntries The maximum number of entries a package may contain
+   * @param maxExpandedBytes The maximum number of bytes a package may expand to on disk
+   * @param maxDepth The maximum directory depth of a package entry
+   * @param maxRenderMillis The maximum time in milliseconds a single template may take to render
+   * @param maxOutputBytes The maximum number of bytes a single template may render
+   */
+  public ResourceLimits(int maxEntries, long maxExpandedBytes, int maxDepth,
+      long maxRenderMillis, long maxOutputBytes) {
+    this(maxEntries, maxExpandedBytes, maxDepth, maxRenderMillis, maxOutputBytes,
+        DEFAULT_MAX_LOOP_ITERATIONS);
+  }
+
+  /**
+   * @param maxEntries The maximum number of entries a package may contain
+   * @param maxExpandedBytes The maximum number of bytes a package may expand to on disk
+   * @param maxDepth The maximum directory depth of a package entry
+   * @param maxRenderMillis The maximum time in milliseconds a single template may take to render
+   * @param maxOutputBytes The maximum number of bytes a single template may render
+   * @param maxLoopIterations The maximum number of #foreach iterations a single template may
+   * run in total, which is also the maximum size of a [n..m] range
+   */
+  public ResourceLimits(int maxEntries, long maxExpandedBytes, int maxDepth,
+      long maxRenderMillis, long maxOutputBytes, long maxLoopIterations) {
+    this.maxEntries = maxEntries;
+    this.maxExpandedBytes = maxExpandedBytes;
+    this.maxDepth = maxDepth;
+    this.maxRenderMillis = maxRenderMillis;
+    this.maxOutputBytes = maxOutputBytes;
+    this.maxLoopIterations = maxLoopIterations;
+  }
+
+  /**
+   * @return The default limits, which are generous enough for any sane scaffold.
+   */
+  public static ResourceLimits defaults() {
+    return new ResourceLimits(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_EXPANDED_BYTES, DEFAULT_MAX_DEPTH,
+        DEFAULT_MAX_RENDER_MILLIS, DEFAULT_MAX_OUTPUT_BYTES, DEFAULT_MAX_LOOP_ITERATIONS);
+  }
+
+  /**
+   * Build the limits from the given properties (e.g., -Dvtlg.maxEntries=500), falling back
+   * to the defaults for any that are not specified.
+   *
+   * @param props
+   * @return
+   */
+  public static ResourceLimits fromProperties(Map<String, Object> props) {
+    return new ResourceLimits(
+        (int) getLong(props, PROP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+        getLong(props, PROP_MAX_EXPANDED_BYTES, DEFAULT_MAX_EXPANDED_BYTES),
+        (int) getLong(props, PROP_MAX_DEPTH, DEFAULT_MAX_DEPTH),
+        getLong(props, PROP_MAX_RENDER_MILLIS, DEFAULT_MAX_RENDER_MILLIS),
+        getLong(props, PROP_MAX_OUTPUT_BYTES, DEFAULT_MAX_OUTPUT_BYTES),
+        getLong(props, PROP_MAX_LOOP_ITERATIONS, DEFAULT_MAX_LOOP_ITERATIONS));
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getMaxExpandedBytes() {
+    return maxExpandedBytes;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  public long getMaxRenderMillis() {
+    return maxRenderMillis;
+  }
+
+  public long getMaxOutputBytes() {
+    return maxOutputBytes;
+  }
+
+  public long getMaxLoopIterations() {
+    return maxLoopIterations;
+  }
+
+  /**
+   * @param limit
+   * @param value
+   * @return Whether or not the given value is beyond the given limit.
+   */
+  public static boolean exceeds(long limit, long value) {
+    return limit > 0 && value > limit;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ResourceLimits[maxEntries=%d, maxExpandedBytes=%d, maxDepth=%d, "
+        + "maxRenderMillis=%d, maxOutputBytes=%d, maxLoopIterations=%d]", maxEntries,
+        maxExpandedBytes, maxDepth, maxRenderMillis, maxOutputBytes, maxLoopIterations);
+  }
+
+  private static long getLong(Map<String, Object> props, String key, long defaultValue) {
+    Object val = (props == null) ? null : props.get(key);
+    if (val == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(val.toString().trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format("Property %s must be a number, but was: %s",
+          key, val), e);
+    }
+  }
+}
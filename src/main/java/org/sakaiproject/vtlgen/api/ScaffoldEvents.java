@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import org.sakaiproject.vtlgen.api.ScaffoldListener.Phase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The point from which scaffold events are emitted to the registered {@link ScaffoldListener}.
+ * <p>
+ * When no listener is registered, emitting costs a single read of a volatile field, and
+ * neither reads the clock nor allocates. The listeners registered when this class is loaded
+ * are:
+ * <ul>
+ * <li>those named by the comma-separated {@value #PROP_LISTENER} system property, which
+ * may also name {@value #LISTENER_LOG} and {@value #LISTENER_JFR}, or be {@value #LISTENER_NONE}
+ * for none at all. When the property is set, no other listener is registered.</li>
+ * <li>otherwise, the listeners declared in
+ * {@code META-INF/services/org.sakaiproject.vtlgen.api.ScaffoldListener} on the plugin
+ * classpath; a listener that logs each event to the {@value #LOGGER_NAME} logger if it has
+ * debug enabled, so slow templates and I/O stalls can be found in the build log; and a
+ * listener that commits each event to Java Flight Recorder, if it was started with the JVM,
+ * so they can be found in the recording.</li>
+ * </ul>
+ * Listeners named or declared this way need a public no-argument constructor.
+ * <p>
+ * The emitting code brackets its work with {@link #begin(Phase)}, and passes the returned
+ * span to the event method, e.g.:
+ * 
+ * <pre>
+ * ScaffoldEvents.Span span = ScaffoldEvents.begin(Phase.FILE_PROCESSED);
+ * ...
+ * ScaffoldEvents.fileProcessed(span, source, target);
+ * </pre>
+ */
+public final class ScaffoldEvents {
+
+  public static final String LOGGER_NAME = "org.sakaiproject.vtlgen.events";
+  public static final String PROP_LISTENER = "vtlg.eventListener";
+  public static final String LISTENER_LOG = "log";
+  public static final String LISTENER_JFR = "jfr";
+  public static final String LISTENER_NONE = "none";
+  
+  private static final Logger LOGGER = LoggerFactory.getLogger(LOGGER_NAME);
+  
+  private static volatile ScaffoldListener listener = combine(findListeners(
+      System.getProperty(PROP_LISTENER), ScaffoldEvents.class.getClassLoader()));
+  
+  private ScaffoldEvents() {
+  }
+  
+  /**
+   * @param listener The listener that receives all subsequent events, or {@code null} to stop
+   * emitting them
+   */
+  public static void setListener(ScaffoldListener listener) {
+    ScaffoldEvents.listener = listener;
+  }
+  
+  public static ScaffoldListener getListener() {
+    return listener;
+  }
+  
+  /**
+   * Find the listeners to register, as described in the class documentation.
+   * 
+   * @param names The value of the {@value #PROP_LISTENER} property, or {@code null}
+   * @param loader The class loader from which listeners are loaded
+   * @return The listeners.
+   */
+  static List<ScaffoldListener> findListeners(String names, ClassLoader loader) {
+    List<ScaffoldListener> listeners = new ArrayList<ScaffoldListener>();
+    if (names != null) {
+      for (String name : names.split(",")) {
+        name = name.trim();
+        ScaffoldListener l = null;
+        if (LISTENER_LOG.equals(name)) {
+          l = new LoggingListener();
+        } else if (LISTENER_JFR.equals(name)) {
+          l = JfrScaffoldListener.create();
+          if (l == null) {
+            LOGGER.warn("This JVM has no Flight Recorder, so scaffold events are not recorded.");
+          }
+        } else if (name.length() > 0 && !LISTENER_NONE.equals(name)) {
+          l = instantiate(name, loader);
+        }
+        if (l != null) {
+          listeners.add(l);
+        }
+      }
+      return listeners;
+    }
+    
+    listeners.addAll(loadServices(loader));
+    if (LOGGER.isDebugEnabled()) {
+      listeners.add(new LoggingListener());
+    }
+    if (JfrScaffoldListener.isRecorderStarted()) {
+      ScaffoldListener jfr = JfrScaffoldListener.create();
+      if (jfr != null) {
+        listeners.add(jfr);
+      }
+    }
+    return listeners;
+  }
+  
+  private static ScaffoldListener instantiate(String className, ClassLoader loader) {
+    try {
+      return (ScaffoldListener) Class.forName(className, true, loader).newInstance();
+    } catch (Exception e) {
+      LOGGER.warn("Could not register the scaffold listener {}: {}", className, e.toString());
+      return null;
+    }
+  }
+  
+  /**
+   * Load the listeners declared as services. java.util.ServiceLoader is called through
+   * reflection, since it is only available from Java 6.
+   * 
+   * @param loader
+   * @return
+   */
+  private static List<ScaffoldListener> loadServices(ClassLoader loader) {
+    List<ScaffoldListener> services = new ArrayList<ScaffoldListener>();
+    try {
+      Class<?> serviceLoader = Class.forName("java.util.ServiceLoader");
+      Iterable<?> loaded = (Iterable<?>) serviceLoader.getMethod("load", Class.class,
+          ClassLoader.class).invoke(null, ScaffoldListener.class, loader);
+      for (Object service : loaded) {
+        services.add((ScaffoldListener) service);
+      }
+    } catch (ClassNotFoundException e) {
+      LOGGER.debug("No ServiceLoader, so no scaffold listeners are discovered.");
+    } catch (Exception e) {
+      LOGGER.warn("Could not discover the scaffold listeners: {}", e.toString());
+    } catch (Error e) {
+      // a ServiceConfigurationError, for a listener that is declared but cannot be loaded
+      LOGGER.warn("Could not discover the scaffold listeners: {}", e.toString());
+    }
+    return services;
+  }
+  
+  /**
+   * @param listeners
+   * @return A listener that passes the events to each of the given ones, or {@code null} if
+   * there are none.
+   */
+  private static ScaffoldListener combine(List<ScaffoldListener> listeners) {
+    if (listeners.isEmpty()) {
+      return null;
+    }
+    if (listeners.size() == 1) {
+      return listeners.get(0);
+    }
+    return new CompositeListener(listeners.toArray(new ScaffoldListener[listeners.size()]));
+  }
+  
+  /**
+   * Begin a phase of the run, and let the registered listener begin its event for it.
+   * 
+   * @param phase
+   * @return The span to pass to the event method when the phase completes, or {@code null}
+   * if no listener is registered.
+   */
+  public static Span begin(Phase phase) {
+    ScaffoldListener l = listener;
+    if (l == null) {
+      return null;
+    }
+    Object state = l.begin(phase);
+    return new Span(l, state, System.nanoTime());
+  }
+  
+  public static void packageGenerated(Span span, String packageUrl, String digest,
+      int generated) {
+    if (span != null) {
+      span.listener.packageGenerated(span.state, packageUrl, digest, generated, span.elapsed());
+    }
+  }
+  
+  public static void entryExtracted(Span span, String packageName, String entryName,
+      long bytes) {
+    if (span != null) {
+      span.listener.entryExtracted(span.state, packageName, entryName, bytes, span.elapsed());
+    }
+  }
+  
+  public static void templateRendered(Span span, String templateDigest, long bytes,
+      boolean cached) {
+    if (span != null) {
+      span.listener.templateRendered(span.state, templateDigest, bytes, cached, span.elapsed());
+    }
+  }
+  
+  public static void fileProcessed(Span span, String source, String target) {
+    if (span != null) {
+      span.listener.fileProcessed(span.state, source, target, span.elapsed());
+    }
+  }
+  
+  /**
+   * A phase of the run that has begun. The event that completes it goes to the listener
+   * that began it, even if another one has been registered since.
+   */
+  public static final class Span {
+    
+    private final ScaffoldListener listener;
+    private final Object state;
+    private final long start;
+    
+    private Span(ScaffoldListener listener, Object state, long start) {
+      this.listener = listener;
+      this.state = state;
+      this.start = start;
+    }
+    
+    private long elapsed() {
+      return System.nanoTime() - start;
+    }
+  }
+  
+  /**
+   * Passes each event to several listeners.
+   */
+  private static class CompositeListener implements ScaffoldListener {
+    
+    private final ScaffoldListener[] listeners;
+    
+    private CompositeListener(ScaffoldListener[] listeners) {
+      this.listeners = listeners;
+    }
+    
+    /**
+     * @return The state of each listener, in order.
+     */
+    public Object begin(Phase phase) {
+      Object[] states = new Object[listeners.length];
+      for (int i = 0; i < listeners.length; i++) {
+        states[i] = listeners[i].begin(phase);
+      }
+      return states;
+    }
+    
+    public void packageGenerated(Object state, String packageUrl, String digest, int generated,
+        long nanos) {
+      Object[] states = (Object[]) state;
+      for (int i = 0; i < listeners.length; i++) {
+        listeners[i].packageGenerated(states[i], packageUrl, digest, generated, nanos);
+      }
+    }
+    
+    public void entryExtracted(Object state, String packageName, String entryName, long bytes,
+        long nanos) {
+      Object[] states = (Object[]) state;
+      for (int i = 0; i < listeners.length; i++) {
+        listeners[i].entryExtracted(states[i], packageName, entryName, bytes, nanos);
+      }
+    }
+    
+    public void templateRendered(Object state, String templateDigest, long bytes,
+        boolean cached, long nanos) {
+      Object[] states = (Object[]) state;
+      for (int i = 0; i < listeners.length; i++) {
+        listeners[i].templateRendered(states[i], templateDigest, bytes, cached, nanos);
+      }
+    }
+    
+    public void fileProcessed(Object state, String source, String target, long nanos) {
+      Object[] states = (Object[]) state;
+      for (int i = 0; i < listeners.length; i++) {
+        listeners[i].fileProcessed(states[i], source, target, nanos);
+      }
+    }
+  }
+  
+  /**
+   * Logs each event as a single line at debug level.
+   */
+  private static class LoggingListener implements ScaffoldListener {
+    
+    public Object begin(Phase phase) {
+      return null;
+    }
+    
+    public void packageGenerated(Object state, String packageUrl, String digest, int generated,
+        long nanos) {
+      LOGGER.debug("package url={} digest={} generated={} micros={}", new Object[] {
+          packageUrl, digest, generated, nanos / 1000 });
+    }
+    
+    public void entryExtracted(Object state, String packageName, String entryName, long bytes,
+        long nanos) {
+      LOGGER.debug("entry package={} name={} bytes={} micros={}", new Object[] {
+          packageName, entryName, bytes, nanos / 1000 });
+    }
+    
+    public void templateRendered(Object state, String templateDigest, long bytes,
+        boolean cached, long nanos) {
+      LOGGER.debug("render template={} bytes={} cached={} micros={}", new Object[] {
+          templateDigest, bytes, cached, nanos / 1000 });
+    }
+    
+    public void fileProcessed(Object state, String source, String target, long nanos) {
+      LOGGER.debug("process source={} target={} micros={}", new Object[] {
+          source, target, nanos / 1000 });
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+/**
+ * Receives an event for each phase of a scaffold run as it begins and as it completes.
+ * Durations are in nanoseconds. Listeners are called on the thread doing the work, so they
+ * should be quick.
+ * 
+ * @see ScaffoldEvents
+ */
+public interface ScaffoldListener {
+
+  /**
+   * The phases of a scaffold run that are reported.
+   */
+  enum Phase {
+    PACKAGE_GENERATED, ENTRY_EXTRACTED, TEMPLATE_RENDERED, FILE_PROCESSED
+  }
+  
+  /**
+   * A phase of a scaffold run began.
+   * 
+   * @param phase
+   * @return Any state of this listener for the phase, passed back to the method for the
+   * event that completes it, or {@code null}.
+   */
+  Object begin(Phase phase);
+  
+  /**
+   * A package was extracted and generated into its target.
+   * 
+   * @param state The value returned by {@link #begin(Phase)}
+   * @param packageUrl The package URL
+   * @param digest The SHA-256 of the package
+   * @param generated The number of files and directories generated
+   * @param nanos
+   */
+  void packageGenerated(Object state, String packageUrl, String digest, int generated, long nanos);
+  
+  /**
+   * A file entry of a package archive was extracted.
+   * 
+   * @param state The value returned by {@link #begin(Phase)}
+   * @param packageName The name of the archive
+   * @param entryName
+   * @param bytes The number of bytes written
+   * @param nanos
+   */
+  void entryExtracted(Object state, String packageName, String entryName, long bytes, long nanos);
+  
+  /**
+   * A template was rendered, or its output copied from the render cache.
+   * 
+   * @param state The value returned by {@link #begin(Phase)}
+   * @param templateDigest The SHA-256 of the template content
+   * @param bytes The number of bytes of output
+   * @param cached Whether or not the output came from the render cache
+   * @param nanos
+   */
+  void templateRendered(Object state, String templateDigest, long bytes, boolean cached,
+      long nanos);
+  
+  /**
+   * A file or directory of a package was processed into its target.
+   * 
+   * @param state The value returned by {@link #begin(Phase)}
+   * @param source The package file
+   * @param target The generated file, or {@code null} if nothing was generated
+   * @param nanos
+   */
+  void fileProcessed(Object state, String source, String target, long nanos);
+  
+}
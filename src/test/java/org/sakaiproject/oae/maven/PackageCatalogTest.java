@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.TestPackages;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests which artifacts of the local Maven repository the catalog lists.
+ */
+public class PackageCatalogTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File repository;
+
+  @Before
+  public void setUp() throws IOException {
+    repository = tmp.newFolder("repository");
+    artifact("org/sakaiproject/widget/1.2/widget-1.2-vtlg.tar", "widget");
+    artifact("org/sakaiproject/nakamura/gadget/1.0/gadget-1.0-vtlg.zip", "gadget");
+    artifact("org/sakaiproject/other/1.0/other-1.0.tar", "other");
+    artifact("com/example/thing/2.0/thing-2.0-vtlg.tar", "thing");
+    artifact("org/sakaiproject/bare/1.0/bare-1.0-vtlg.tar", null);
+  }
+
+  @Test
+  public void testDefaultGroups() throws IOException {
+    PackageCatalog catalog = new PackageCatalog(tmp.newFile("catalog.index"),
+        new ArrayList<File>(), repository);
+    List<String> names = names(catalog);
+    Assert.assertTrue(names.contains("widget"));
+    Assert.assertTrue(names.contains("gadget"));
+    Assert.assertFalse(names.contains("other"));
+    Assert.assertFalse(names.contains("thing"));
+    Assert.assertFalse(names.contains("bare"));
+    Assert.assertFalse(names.contains("bare-1.0-vtlg"));
+    
+    PackageCatalog.Entry widget = catalog.find("widget");
+    Assert.assertEquals("1.2", widget.version);
+    Assert.assertEquals("mvn:org.sakaiproject:widget:1.2:tar:vtlg", widget.url);
+  }
+
+  @Test
+  public void testConfiguredGroups() throws IOException {
+    PackageCatalog catalog = new PackageCatalog(tmp.newFile("catalog.index"),
+        new ArrayList<File>(), repository, Arrays.asList("com.example",
+            "org.sakaiproject.nakamura", "org.sakaiproject.nakamura"));
+    List<String> names = names(catalog);
+    Assert.assertTrue(names.contains("thing"));
+    Assert.assertTrue(names.contains("gadget"));
+    Assert.assertFalse(names.contains("widget"));
+    Assert.assertEquals(names.indexOf("gadget"), names.lastIndexOf("gadget"));
+  }
+
+  @Test
+  public void testUnreadablePackageIsIndexed() throws IOException {
+    File dir = tmp.newFolder("packages");
+    byte[] header = new byte[512];
+    Arrays.fill(header, (byte) 'x');
+    FileUtils.writeByteArrayToFile(new File(dir, "broken.tar"), header);
+    File index = tmp.newFile("catalog.index");
+    PackageCatalog catalog = new PackageCatalog(index, Arrays.asList(dir), null);
+    
+    Assert.assertFalse(names(catalog).contains("broken"));
+    Assert.assertTrue(FileUtils.readFileToString(index).contains("failed=true"));
+    
+    // the package is not read again, so the index is not rewritten
+    index.setLastModified(index.lastModified() - 10000);
+    long indexed = index.lastModified();
+    Assert.assertFalse(names(catalog).contains("broken"));
+    Assert.assertEquals(indexed, index.lastModified());
+  }
+
+  private List<String> names(PackageCatalog catalog) throws IOException {
+    List<String> names = new ArrayList<String>();
+    for (PackageCatalog.Entry entry : catalog.list()) {
+      names.add(entry.name);
+    }
+    return names;
+  }
+
+  /**
+   * Write a package artifact, described with the given name unless it is {@code null}.
+   */
+  private void artifact(String path, String name) throws IOException {
+    File file = new File(repository, path);
+    file.getParentFile().mkdirs();
+    String[] entries = (name == null) ? new String[] { "README", "bare" }
+        : new String[] { ".vtlg-package", "name=" + name + "\nversion=1.2\n", "README", name };
+    if (path.endsWith(".zip")) {
+      TestPackages.writeZip(file, TestPackages.entries(entries));
+    } else {
+      TestPackages.writeTar(file, TestPackages.entries(entries));
+    }
+  }
+}
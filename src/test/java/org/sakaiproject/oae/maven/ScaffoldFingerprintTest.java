@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests that a scaffold is only up to date while its generated files are unchanged.
+ */
+public class ScaffoldFingerprintTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File target;
+  private File generated;
+  private ScaffoldFingerprint fingerprint;
+
+  @Before
+  public void setUp() throws IOException {
+    target = tmp.newFolder("target");
+    generated = new File(target, "README");
+    FileUtils.writeStringToFile(generated, "app 1");
+    fingerprint = new ScaffoldFingerprint(tmp.newFolder("fingerprints"), "file:/pkg.tar", target);
+    fingerprint.store("inputs", Arrays.asList(target, generated));
+  }
+
+  @Test
+  public void testUpToDate() {
+    Assert.assertTrue(fingerprint.isUpToDate("inputs"));
+    Assert.assertFalse(fingerprint.isUpToDate("other inputs"));
+  }
+
+  @Test
+  public void testEditedFileOfSameSize() throws IOException {
+    long modified = generated.lastModified();
+    FileUtils.writeStringToFile(generated, "app 2");
+    generated.setLastModified(modified - 10000);
+    
+    Assert.assertFalse(fingerprint.isUpToDate("inputs"));
+  }
+
+  @Test
+  public void testDeletedFile() {
+    generated.delete();
+    Assert.assertFalse(fingerprint.isUpToDate("inputs"));
+  }
+}
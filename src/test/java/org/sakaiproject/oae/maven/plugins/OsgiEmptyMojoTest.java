@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven.plugins;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.PackageCache;
+import org.sakaiproject.vtlgen.TestPackages;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+/**
+ * Runs the osgi-empty goal and compares its output to the golden scaffold in
+ * {@code src/test/resources/golden/osgi-empty}.
+ */
+public class OsgiEmptyMojoTest {
+
+  private static final File GOLDEN = new File("src/test/resources/golden/osgi-empty");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    System.setProperty("artifactId", "golden");
+    System.setProperty("packageAlias", "golden");
+    System.setProperty(PackageCache.PROP_CACHE_DIR, tmp.newFolder("cache").getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("artifactId");
+    System.clearProperty("packageAlias");
+    System.clearProperty(PackageCache.PROP_CACHE_DIR);
+  }
+
+  @Test
+  public void testGolden() throws Exception {
+    File target = tmp.newFolder("target");
+    execute(target);
+    TestPackages.assertSameFiles(GOLDEN, target);
+    Assert.assertTrue(new File(target,
+        "golden/src/main/java/org/sakaiproject/nakamura/golden/api").isDirectory());
+  }
+
+  @Test
+  public void testRerunIsUnchanged() throws Exception {
+    File target = tmp.newFolder("target");
+    execute(target);
+    execute(target);
+    TestPackages.assertSameFiles(GOLDEN, target);
+  }
+
+  private static void execute(File target) throws Exception {
+    OsgiEmptyMojo mojo = new OsgiEmptyMojo();
+    Field baseDir = OsgiEmptyMojo.class.getDeclaredField("baseDir");
+    baseDir.setAccessible(true);
+    baseDir.set(mojo, target.getAbsolutePath());
+    mojo.setPluginContext(new HashMap<Object, Object>());
+    mojo.execute();
+  }
+}
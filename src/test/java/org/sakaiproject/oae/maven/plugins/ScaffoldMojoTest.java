@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.oae.maven.plugins;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.PackageCache;
+import org.sakaiproject.vtlgen.PackageRunner;
+import org.sakaiproject.vtlgen.TestPackages;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+/**
+ * Tests that the scaffold goal reports a wrong configuration as a failure of the build,
+ * rather than as an error of the plugin.
+ */
+public class ScaffoldMojoTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    File repository = tmp.newFolder("repository");
+    File widget = new File(repository, "org/sakaiproject/widget/1.0/widget-1.0-vtlg.tar");
+    widget.getParentFile().mkdirs();
+    TestPackages.writeTar(widget, TestPackages.entries(".vtlg-package",
+        "name=widget\nproperties=artifactId\n", "README.vtlg", "$artifactId"));
+    System.setProperty(PackageCache.PROP_CACHE_DIR, tmp.newFolder("cache").getAbsolutePath());
+    System.setProperty(PackageRunner.PROP_LOCAL_REPOSITORY, repository.getAbsolutePath());
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty(PackageCache.PROP_CACHE_DIR);
+    System.clearProperty(PackageRunner.PROP_LOCAL_REPOSITORY);
+  }
+
+  @Test
+  public void testUnknownPackage() throws Exception {
+    try {
+      execute("no-such-package");
+      Assert.fail("The build should have failed");
+    } catch (MojoFailureException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("no-such-package"));
+    }
+  }
+
+  @Test
+  public void testMissingProperty() throws Exception {
+    try {
+      execute("widget");
+      Assert.fail("The build should have failed");
+    } catch (MojoFailureException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("artifactId"));
+    }
+  }
+
+  private void execute(String packageName) throws Exception {
+    ScaffoldMojo mojo = new ScaffoldMojo();
+    set(mojo, "packageName", packageName);
+    set(mojo, "baseDir", tmp.newFolder("target").getAbsolutePath());
+    mojo.setPluginContext(new HashMap<Object, Object>());
+    mojo.execute();
+  }
+
+  private static void set(Object mojo, String name, Object value) throws Exception {
+    Field field = mojo.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(mojo, value);
+  }
+}
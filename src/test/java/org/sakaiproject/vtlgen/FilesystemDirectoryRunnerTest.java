@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the incremental updates of a generated package, in particular of the directories
+ * that a condition includes or excludes.
+ */
+public class FilesystemDirectoryRunnerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File pkg;
+  private File target;
+  private File condition;
+  private Map<String, Object> context;
+  private FilesystemDirectoryRunner runner;
+  private List<File> generated;
+
+  @Before
+  public void setUp() throws IOException {
+    pkg = tmp.newFolder("pkg");
+    target = tmp.newFolder("target");
+    write("${artifactId}/README.vtlg", "$artifactId");
+    condition = write("${artifactId}/api/.vtlg-if", "$includeApi == 'true'");
+    write("${artifactId}/api/Api.java.vtlg", "interface $artifactId {}");
+    write("${artifactId}/api/impl/Impl.java", "class Impl {}");
+    write("VERSION.vtlg", "$version");
+    
+    context = new HashMap<String, Object>();
+    context.put("artifactId", "app");
+    context.put("includeApi", "true");
+    context.put("version", "1.0");
+    runner = new FilesystemDirectoryRunner();
+    generated = runner.generate(pkg, target, context);
+  }
+
+  @Test
+  public void testConditionChange() throws IOException {
+    Assert.assertTrue(output("app/api/Api.java").isFile());
+    
+    FileUtils.writeStringToFile(condition, "$includeApi == 'false'");
+    Assert.assertNull(runner.update(pkg, condition, target, context));
+    Assert.assertFalse(output("app/api").exists());
+    Assert.assertTrue(output("app/README").isFile());
+    
+    FileUtils.writeStringToFile(condition, "$includeApi == 'true'");
+    Assert.assertEquals(output("app/api"), runner.update(pkg, condition, target, context));
+    Assert.assertEquals("interface app {}", FileUtils.readFileToString(output("app/api/Api.java")));
+    Assert.assertTrue(output("app/api/impl/Impl.java").isFile());
+  }
+
+  @Test
+  public void testContextChangeExcludes() throws IOException {
+    context.put("includeApi", "false");
+    Assert.assertNull(runner.update(pkg, condition, target, context));
+    Assert.assertFalse(output("app/api").exists());
+  }
+
+  @Test
+  public void testConditionRemoved() throws IOException {
+    FileUtils.writeStringToFile(condition, "$includeApi == 'false'");
+    runner.update(pkg, condition, target, context);
+    Assert.assertFalse(output("app/api").exists());
+    
+    condition.delete();
+    runner.remove(pkg, condition, target, context);
+    Assert.assertTrue(output("app/api/Api.java").isFile());
+    Assert.assertTrue(output("app/api/impl/Impl.java").isFile());
+  }
+
+  @Test
+  public void testUpdateUnderExcludedDirectory() throws IOException {
+    // the condition changed without the update being seen, so the output is stale
+    FileUtils.writeStringToFile(condition, "$includeApi == 'false'");
+    File impl = new File(pkg, "${artifactId}/api/impl/Impl.java");
+    Assert.assertNull(runner.update(pkg, impl, target, context));
+    Assert.assertFalse(output("app/api/impl/Impl.java").exists());
+    
+    File api = new File(pkg, "${artifactId}/api/Api.java.vtlg");
+    Assert.assertNull(runner.update(pkg, api, target, context));
+    Assert.assertFalse(output("app/api/Api.java").exists());
+  }
+
+  @Test
+  public void testNestedConditionIsKept() throws IOException {
+    File nested = write("${artifactId}/api/impl/.vtlg-if", "$includeImpl == 'true'");
+    runner.update(pkg, nested, target, context);
+    Assert.assertFalse(output("app/api/impl").exists());
+    
+    // generating the parent again does not bring back what the nested condition excludes
+    runner.update(pkg, condition, target, context);
+    Assert.assertTrue(output("app/api/Api.java").isFile());
+    Assert.assertFalse(output("app/api/impl").exists());
+  }
+
+  @Test
+  public void testRefreshRemovesStaleOutput() throws IOException {
+    context.put("artifactId", "web");
+    generated = runner.refresh(pkg, target, context, Collections.singleton("artifactId"),
+        generated);
+    Assert.assertFalse(output("app").exists());
+    Assert.assertEquals("web", FileUtils.readFileToString(output("web/README")));
+    Assert.assertEquals("interface web {}",
+        FileUtils.readFileToString(output("web/api/Api.java")));
+    Assert.assertTrue(output("web/api/impl/Impl.java").isFile());
+    Assert.assertTrue(generated.contains(output("web/api/impl/Impl.java")));
+    Assert.assertFalse(generated.contains(output("app/README")));
+  }
+
+  @Test
+  public void testRefreshOnlyAffectedTemplates() throws IOException {
+    // mark the outputs, to tell whether or not they are rendered again
+    FileUtils.writeStringToFile(output("VERSION"), "marker");
+    FileUtils.writeStringToFile(output("app/README"), "marker");
+    
+    context.put("version", "2.0");
+    generated = runner.refresh(pkg, target, context, Collections.singleton("version"),
+        generated);
+    Assert.assertEquals("2.0", FileUtils.readFileToString(output("VERSION")));
+    Assert.assertEquals("marker", FileUtils.readFileToString(output("app/README")));
+    Assert.assertTrue(output("app/api/Api.java").isFile());
+  }
+
+  @Test
+  public void testRefreshKeepsUserFiles() throws IOException {
+    FileUtils.writeStringToFile(output("app/api/Notes.txt"), "not generated");
+    
+    context.put("artifactId", "web");
+    runner.refresh(pkg, target, context, Collections.singleton("artifactId"), generated);
+    Assert.assertTrue(output("web/api/Api.java").isFile());
+    Assert.assertFalse(output("app/README").exists());
+    Assert.assertFalse(output("app/api/Api.java").exists());
+    Assert.assertTrue(output("app/api/Notes.txt").isFile());
+  }
+
+  @Test
+  public void testRefreshAppliesConditions() throws IOException {
+    context.put("includeApi", "false");
+    generated = runner.refresh(pkg, target, context, Collections.singleton("includeApi"),
+        generated);
+    Assert.assertFalse(output("app/api").exists());
+    Assert.assertTrue(output("app/README").isFile());
+    
+    context.put("includeApi", "true");
+    runner.refresh(pkg, target, context, Collections.singleton("includeApi"), generated);
+    Assert.assertEquals("interface app {}", FileUtils.readFileToString(output("app/api/Api.java")));
+    Assert.assertTrue(output("app/api/impl/Impl.java").isFile());
+  }
+
+  @Test
+  public void testNamesCollideRegardlessOfCase() throws IOException {
+    write("${artifactId}/${artifactId}.txt", "generated");
+    write("${artifactId}/APP.txt", "plain");
+    try {
+      runner.generate(pkg, tmp.newFolder("collision"), context);
+      Assert.fail("The colliding names should have been rejected");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("already exists"));
+    }
+  }
+
+  private File write(String path, String content) throws IOException {
+    File file = new File(pkg, path);
+    FileUtils.writeStringToFile(file, content);
+    return file;
+  }
+
+  private File output(String path) {
+    return new File(target, path);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.api.PackageDelta;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that packages from a file: repository are cached, and updated with deltas only when
+ * the delta reproduces the published package.
+ */
+public class PackageCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File repository;
+  private File published;
+  private File v1;
+  private File v2;
+  private File cacheDir;
+  private PackageRunner runner;
+
+  @Before
+  public void setUp() throws IOException {
+    repository = tmp.newFolder("repository");
+    published = new File(repository, "pkg.tar");
+    v1 = TestPackages.writeTar(tmp.newFile("v1.tar"), TestPackages.entries(
+        "README.vtlg", "$artifactId 1", "same.txt", "same"));
+    v2 = TestPackages.writeTar(tmp.newFile("v2.tar"), TestPackages.entries(
+        "README.vtlg", "$artifactId 2", "same.txt", "same"));
+    runner = new PackageRunner(ResourceLimits.defaults(), new PackageCache(cacheDir = tmp.newFolder("cache")));
+    
+    FileUtils.copyFile(v1, published);
+    Assert.assertEquals("app 1", generate(digest(v1)));
+  }
+
+  @Test
+  public void testDeltaUpdate() throws IOException {
+    PackageDelta.create(v1, digest(v1), v2, digest(v2), delta());
+    // the whole package cannot be fetched, so only the delta can produce it
+    FileUtils.writeStringToFile(published, "unavailable");
+    
+    Assert.assertEquals("app 2", generate(digest(v2)));
+  }
+
+  @Test
+  public void testCachedPackageIsUsed() throws IOException {
+    FileUtils.writeStringToFile(published, "unavailable");
+    Assert.assertEquals("app 1", generate(digest(v1)));
+  }
+
+  @Test
+  public void testWrongDeltaFallsBackToPackage() throws IOException {
+    File evil = TestPackages.writeTar(tmp.newFile("evil.tar"), TestPackages.entries(
+        "README.vtlg", "PWNED", "same.txt", "same"));
+    PackageDelta.create(v1, digest(v1), evil, digest(v2), delta());
+    FileUtils.copyFile(v2, published);
+    
+    Assert.assertEquals("app 2", generate(digest(v2)));
+  }
+
+  @Test
+  public void testWrongDeltaIsNeverUsed() throws IOException {
+    File evil = TestPackages.writeTar(tmp.newFile("evil.tar"), TestPackages.entries(
+        "README.vtlg", "PWNED", "same.txt", "same"));
+    PackageDelta.create(v1, digest(v1), evil, digest(v2), delta());
+    FileUtils.writeStringToFile(published, "unavailable");
+    
+    try {
+      generate(digest(v2));
+      Assert.fail("The package should have been rejected");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("does not match"));
+    }
+  }
+
+  @Test
+  public void testCorruptCachedPackageIsFetchedAgain() throws IOException {
+    for (File file : cacheDir.listFiles()) {
+      if (file.getName().endsWith(".tar")) {
+        FileUtils.copyFile(v2, file);
+      }
+    }
+    
+    Assert.assertEquals("app 1", generate(digest(v1)));
+  }
+
+  @Test
+  public void testOversizedPackageIsRejected() throws IOException {
+    PackageCache cache = new PackageCache(tmp.newFolder());
+    try {
+      cache.fetch(published.toURI().toString(), digest(v1), new ResourceLimits(0, 1024, 0, 0, 0));
+      Assert.fail("The package should have been rejected");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("maximum of 1024 bytes"));
+    }
+  }
+
+  private String generate(String digest) throws IOException {
+    File target = tmp.newFolder();
+    Map<String, Object> context = new HashMap<String, Object>();
+    context.put("artifactId", "app");
+    runner.generate(published.toURI().toString() + "#sha256=" + digest, target, context);
+    Assert.assertEquals("same", FileUtils.readFileToString(new File(target, "same.txt")));
+    return FileUtils.readFileToString(new File(target, "README"));
+  }
+
+  private File delta() throws IOException {
+    return new File(published.getAbsolutePath() + ".delta-" + digest(v1));
+  }
+
+  private static String digest(File file) throws IOException {
+    return PackageUtil.toHex(PackageUtil.sha256().digest(FileUtils.readFileToByteArray(file)));
+  }
+}
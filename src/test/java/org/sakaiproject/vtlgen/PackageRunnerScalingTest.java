@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs generated packages of growing size through the {@link PackageRunner}, checking that
+ * the run time grows linearly with the package and that memory use does not grow with it at
+ * all.
+ */
+public class PackageRunnerScalingTest {
+
+  private static final int[] SIZES = { 100, 400, 1600 };
+  private static final int RUNS = 5;
+  private static final long ASSET_SIZE = 96L * 1024 * 1024;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testGenerate() throws IOException {
+    File pkg = TestPackages.writeTar(tmp.newFile("pkg.tar"), TestPackages.scaffold(10));
+    File target = tmp.newFolder("target");
+    List<File> generated = new PackageRunner().generate(pkg.toURI().toString(), target,
+        context());
+    
+    File template = new File(target, "app/src/d0/F4-app.txt");
+    Assert.assertTrue(template.isFile());
+    Assert.assertEquals("file 4 of app in org.example\n",
+        FileUtils.readFileToString(template));
+    Assert.assertTrue(new File(target, "app/src/d0/f5.txt").isFile());
+    // app/, app/src/, app/src/d0/ and the 10 files
+    Assert.assertEquals(13, generated.size());
+  }
+
+  @Test
+  public void testRunTimeScalesLinearly() throws IOException {
+    // warm up the class loading and the JIT, so that it is not charged to the smallest package
+    run(SIZES[0], "warmup");
+    
+    // the median of several runs, so that a single pause of the machine does not decide it
+    double[] nanosPerEntry = new double[SIZES.length];
+    for (int i = 0; i < SIZES.length; i++) {
+      long[] nanos = new long[RUNS];
+      for (int attempt = 0; attempt < RUNS; attempt++) {
+        nanos[attempt] = run(SIZES[i], SIZES[i] + "-" + attempt);
+      }
+      Arrays.sort(nanos);
+      nanosPerEntry[i] = (double) nanos[RUNS / 2] / SIZES[i];
+    }
+    
+    // a package 16 times the size may cost a little more per entry, but not in proportion to
+    // its size, which is what a quadratic walk or lookup would do
+    double ratio = nanosPerEntry[SIZES.length - 1] / nanosPerEntry[0];
+    Assert.assertTrue(String.format("Per-entry time grew %.1f times: %s", ratio,
+        Arrays.toString(nanosPerEntry)), ratio < 4);
+  }
+
+  @Test
+  public void testHeapCeiling() throws IOException {
+    // the tests run with a heap smaller than the asset, so the asset must be streamed from
+    // the package to its target rather than buffered
+    Assert.assertTrue("The heap must be smaller than the asset for this test to mean anything",
+        Runtime.getRuntime().maxMemory() < ASSET_SIZE);
+    
+    File pkg = TestPackages.writeLargeTar(tmp.newFile("large.tar"), "assets/large.bin",
+        ASSET_SIZE);
+    File target = tmp.newFolder("large");
+    new PackageRunner().generate(pkg.toURI().toString(), target, context());
+    Assert.assertEquals(ASSET_SIZE, new File(target, "assets/large.bin").length());
+  }
+
+  @Test
+  public void testNoTemporaryFilesRemain() throws IOException {
+    Set<String> before = listTemporaryFiles();
+    
+    run(100, "temp");
+    
+    File broken = TestPackages.writeTar(tmp.newFile("broken.tar"), TestPackages.entries(
+        "ok.txt", "fine", "../escape.txt", "not fine"));
+    try {
+      new PackageRunner().generate(broken.toURI().toString(), tmp.newFolder("broken"),
+          context());
+      Assert.fail("The package should have been rejected");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    
+    File zip = tmp.newFile("pkg.zip");
+    FileUtils.writeByteArrayToFile(zip, new byte[] { 1, 2, 3 });
+    try {
+      new PackageRunner().generate(zip.toURI().toString(), tmp.newFolder("zip"), context());
+      Assert.fail("The zip should have been rejected");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    
+    Assert.assertEquals(before, listTemporaryFiles());
+  }
+
+  @Test
+  public void testZipPackage() throws IOException {
+    File zip = TestPackages.writeZip(tmp.newFile("pkg.zip"), TestPackages.entries(
+        "app/", null, "app/README.vtlg", "$artifactId", "app/plain.txt", "plain"));
+    String digest = new PackageRunner().digest(zip.toURI().toString());
+    
+    File target = tmp.newFolder("zip");
+    new PackageRunner().generate(zip.toURI().toString() + "#sha256=" + digest, target,
+        context());
+    Assert.assertEquals("app", FileUtils.readFileToString(new File(target, "app/README")));
+    Assert.assertEquals("plain", FileUtils.readFileToString(new File(target, "app/plain.txt")));
+    
+    try {
+      new PackageRunner().generate(zip.toURI().toString() + "#sha256="
+          + digest.substring(1) + "0", tmp.newFolder("tampered"), context());
+      Assert.fail("The zip should have been rejected");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("does not match"));
+    }
+  }
+
+  @Test
+  public void testMavenPackageFromGivenRepository() throws IOException {
+    File repository = tmp.newFolder("repository");
+    File artifact = new File(repository, "org/example/pkg/1.0/pkg-1.0.tar");
+    artifact.getParentFile().mkdirs();
+    TestPackages.writeTar(artifact,
+        TestPackages.entries("README.vtlg", "$artifactId"));
+    
+    File target = tmp.newFolder("mvn");
+    new PackageRunner(ResourceLimits.defaults(), null, null, repository)
+        .generate("mvn:org.example:pkg:1.0", target, context());
+    Assert.assertEquals("app", FileUtils.readFileToString(new File(target, "README")));
+    
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(PackageRunner.PROP_LOCAL_REPOSITORY, repository.getAbsolutePath());
+    Assert.assertEquals(repository, PackageRunner.getLocalMavenRepository(props));
+  }
+
+  private long run(int files, String name) throws IOException {
+    File pkg = TestPackages.writeTar(tmp.newFile(name + ".tar"), TestPackages.scaffold(files));
+    File target = tmp.newFolder(name);
+    String url = pkg.toURI().toString();
+    PackageRunner runner = new PackageRunner(ResourceLimits.defaults());
+    long start = System.nanoTime();
+    runner.generate(url, target, context());
+    return System.nanoTime() - start;
+  }
+
+  private static Set<String> listTemporaryFiles() {
+    Set<String> result = new HashSet<String>();
+    String[] names = new File(System.getProperty("java.io.tmpdir")).list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith("vtlg-dir") || name.startsWith("vtlg-pkg")) {
+          result.add(name);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static Map<String, Object> context() {
+    Map<String, Object> ctx = new HashMap<String, Object>();
+    ctx.put("artifactId", "app");
+    ctx.put("groupId", "org.example");
+    return ctx;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.Velocity;
+import org.apache.velocity.runtime.RuntimeSingleton;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.vtlgen.api.PackageUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that substitution templates render exactly what velocity renders, by rendering the
+ * same templates both ways, and that the bundled templates are compiled into the jar.
+ */
+public class SubstitutionTemplateTest {
+
+  private static final String[] COMPILED = { "", "plain text only", "$x", "${x}", "$!x", "$!{x}",
+      "$missing", "${missing}", "$!missing", "$!{missing}", "a${x}b", "$x$x", "$x-y", "${x}-y",
+      "$1 $ 5 $x $ a", "#* c *# $x", "a ## line\n$x", "a\nb\r\n$x\n", "$_x", "$x_y-z", "$n", "$b",
+      "$obj", "mail@${x}.org", "$x\\", "$x}", "$!x!",
+      "#[[not raw before velocity 1.7]]# $x", "#if($x)y#end", "#if( $missing )y#{else}n#end",
+      "a\n  #if ($x)\n  <x>$x</x>\n  #end\nb", "#if(!$f)not#end", "#if($f)f#elseif($b)b#end",
+      "#if($missing)1#elseif(!$n)2#{else}3#end", "#if($x)#if($!b)xb#end#end" };
+
+  private static final String[] NOT_COMPILED = { "\\$x", "\\\\$x", "\\${x}", "#$x", "$$x",
+      "$x.length()", "$x.foo", "#set($y = 1)$y", "#{x}", "\\#if", "#if($x.foo)a#end",
+      "#if($x && $b)a#end", "#if($x == 'XX')a#end", "#if(\\$x)a#end", "#if($x)$x.foo#end",
+      "#foreach($i in [1..2])$i#end" };
+
+  private static final String ALPHABET = "$$$!{}xxy.\\\\##* -()\na";
+
+  private static final String[] FRAGMENTS = { "#if($x)", "#if(!$f)", "#if($missing)",
+      "#elseif($b)", "#elseif(!$x)", "#else", "#{else}", "#end", "#end", "#end", "$x", "$!missing",
+      "${n}", "text", " ", "\n", "  \n", "\t", "## c\n", "#* c *#" };
+
+  @Test
+  public void testPlainTemplatesAreCompiled() throws Exception {
+    for (String template : COMPILED) {
+      Assert.assertNotNull(template, compile(template));
+      assertSameAsVelocity(template);
+    }
+  }
+
+  @Test
+  public void testOtherTemplatesAreLeftToVelocity() throws Exception {
+    for (String template : NOT_COMPILED) {
+      Assert.assertNull(template, compile(template));
+      assertSameAsVelocity(template);
+    }
+  }
+
+  @Test
+  public void testRandomTemplates() throws Exception {
+    Random random = new Random(20121019L);
+    for (int i = 0; i < 3000; i++) {
+      StringBuilder template = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        template.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+      }
+      assertSameAsVelocity(template.toString());
+    }
+  }
+
+  @Test
+  public void testRandomConditionals() throws Exception {
+    Random random = new Random(20121019L);
+    for (int i = 0; i < 3000; i++) {
+      StringBuilder template = new StringBuilder();
+      int length = random.nextInt(10);
+      for (int j = 0; j < length; j++) {
+        template.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+      assertSameAsVelocity(template.toString());
+    }
+  }
+
+  @Test
+  public void testSerializedTemplates() throws Exception {
+    for (String template : COMPILED) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(compile(template));
+      out.close();
+      SubstitutionTemplate copy = (SubstitutionTemplate) new ObjectInputStream(
+          new ByteArrayInputStream(bytes.toByteArray())).readObject();
+      
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      compile(template).render(context(), expected);
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      copy.render(context(), actual);
+      Assert.assertEquals(template, expected.toString(), actual.toString());
+    }
+  }
+
+  @Test
+  public void testBundledTemplatesArePrecompiled() throws Exception {
+    TarArchiveInputStream tis = new TarArchiveInputStream(getClass().getResourceAsStream(
+        "/org/sakaiproject/oae/maven/templates/osgi-empty.tar"));
+    try {
+      TarArchiveEntry entry = null;
+      while ((entry = tis.getNextTarEntry()) != null) {
+        if (entry.getName().endsWith("pom.xml.vtlg")) {
+          String digest = PackageUtil.toHex(PackageUtil.sha256().digest(
+              IOUtils.toByteArray(tis)));
+          Assert.assertNotNull(TemplatePrecompiler.load(digest));
+          return;
+        }
+      }
+      Assert.fail("The osgi-empty package has no pom.xml.vtlg");
+    } finally {
+      tis.close();
+    }
+  }
+
+  private static void assertSameAsVelocity(String template) throws Exception {
+    String expected;
+    try {
+      StringWriter writer = new StringWriter();
+      Velocity.evaluate(new VelocityContext(context()), writer, "test",
+          new StringReader(template));
+      expected = writer.toString();
+    } catch (Exception e) {
+      expected = null;
+    }
+    
+    String actual;
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new VelocityFileProcessor().processFile(new ByteArrayInputStream(template.getBytes()), out,
+          context());
+      actual = out.toString();
+    } catch (RuntimeException e) {
+      actual = null;
+    }
+    
+    Assert.assertEquals("[" + template + "]", expected, actual);
+  }
+
+  private static SubstitutionTemplate compile(String template) throws Exception {
+    return SubstitutionTemplate.compile(RuntimeSingleton.parse(new StringReader(template),
+        "test"));
+  }
+
+  private static Map<String, Object> context() {
+    Map<String, Object> ctx = new HashMap<String, Object>();
+    ctx.put("x", "XX");
+    ctx.put("n", Integer.valueOf(42));
+    ctx.put("b", Boolean.TRUE);
+    ctx.put("f", Boolean.FALSE);
+    ctx.put("_x", "U");
+    ctx.put("x_y-z", "H");
+    ctx.put("obj", new Object() {
+      @Override
+      public String toString() {
+        return "OBJ";
+      }
+    });
+    return ctx;
+  }
+}
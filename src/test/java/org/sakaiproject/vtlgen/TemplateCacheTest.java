@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the template cache stays within both its number of entries and its total size.
+ */
+public class TemplateCacheTest {
+
+  @Test
+  public void testEntriesAreBounded() {
+    TemplateCache<String> cache = new TemplateCache<String>(2, 1000);
+    cache.put("a", "A", 1);
+    cache.put("b", "B", 1);
+    cache.get("a");
+    cache.put("c", "C", 1);
+    Assert.assertEquals("A", cache.get("a"));
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals("C", cache.get("c"));
+  }
+
+  @Test
+  public void testWeightIsBounded() {
+    TemplateCache<String> cache = new TemplateCache<String>(100, 100);
+    cache.put("a", "A", 40);
+    cache.put("b", "B", 40);
+    cache.put("c", "C", 40);
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals(80, cache.getWeight());
+    
+    // replacing an entry accounts for its new weight only
+    cache.put("c", "C", 10);
+    Assert.assertEquals(50, cache.getWeight());
+    
+    // a value heavier than the whole cache is not kept, and does not evict anything
+    cache.put("d", "D", 101);
+    Assert.assertNull(cache.get("d"));
+    Assert.assertEquals("B", cache.get("b"));
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds template packages for tests.
+ */
+public class TestPackages {
+
+  private TestPackages() {
+  }
+  
+  /**
+   * Write a tar package with the given entries, in order. Entries whose name ends with a
+   * slash are directories.
+   * 
+   * @param file
+   * @param entries
+   * @return The package file.
+   * @throws IOException
+   */
+  public static File writeTar(File file, Map<String, byte[]> entries) throws IOException {
+    TarArchiveOutputStream tos = createTar(file);
+    try {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getKey());
+        if (!entry.getKey().endsWith("/")) {
+          tarEntry.setSize(entry.getValue().length);
+        }
+        tos.putArchiveEntry(tarEntry);
+        if (!entry.getKey().endsWith("/")) {
+          tos.write(entry.getValue());
+        }
+        tos.closeArchiveEntry();
+      }
+      tos.finish();
+    } finally {
+      IOUtils.closeQuietly(tos);
+    }
+    return file;
+  }
+  
+  /**
+   * Write a zip package with the given entries, in the same manner as
+   * {@link #writeTar(File, Map)}.
+   * 
+   * @param file
+   * @param entries
+   * @return The package file.
+   * @throws IOException
+   */
+  public static File writeZip(File file, Map<String, byte[]> entries) throws IOException {
+    ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    try {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        zos.putNextEntry(new ZipEntry(entry.getKey()));
+        if (!entry.getKey().endsWith("/")) {
+          zos.write(entry.getValue());
+        }
+        zos.closeEntry();
+      }
+      zos.finish();
+    } finally {
+      IOUtils.closeQuietly(zos);
+    }
+    return file;
+  }
+  
+  /**
+   * Write a tar package with a single large file, streamed so that it is never in memory.
+   * 
+   * @param file
+   * @param name The name of the large file
+   * @param size The size of the large file
+   * @return The package file.
+   * @throws IOException
+   */
+  public static File writeLargeTar(File file, String name, long size) throws IOException {
+    byte[] block = new byte[64 * 1024];
+    for (int i = 0; i < block.length; i++) {
+      block[i] = (byte) (i * 31);
+    }
+    
+    TarArchiveOutputStream tos = createTar(file);
+    try {
+      TarArchiveEntry entry = new TarArchiveEntry(name);
+      entry.setSize(size);
+      tos.putArchiveEntry(entry);
+      for (long written = 0; written < size; written += block.length) {
+        tos.write(block, 0, (int) Math.min(block.length, size - written));
+      }
+      tos.closeArchiveEntry();
+      tos.finish();
+    } finally {
+      IOUtils.closeQuietly(tos);
+    }
+    return file;
+  }
+  
+  /**
+   * @param files The number of files of the scaffold
+   * @return The entries of a scaffold package with the given number of files, spread over
+   * directories of 50, where every fourth file is a template.
+   */
+  public static Map<String, byte[]> scaffold(int files) {
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    entries.put("${artifactId}/", null);
+    for (int i = 0; i < files; i++) {
+      String dir = "${artifactId}/src/d" + (i / 50) + "/";
+      if (!entries.containsKey(dir)) {
+        entries.put(dir, null);
+      }
+      if (i % 4 == 0) {
+        entries.put(dir + "F" + i + "-${artifactId}.txt.vtlg",
+            ("file " + i + " of $artifactId in ${groupId}\n").getBytes());
+      } else {
+        entries.put(dir + "f" + i + ".txt", ("static content " + i + "\n").getBytes());
+      }
+    }
+    return entries;
+  }
+  
+  /**
+   * @param entries
+   * @return The given name and content pairs as entries.
+   */
+  public static Map<String, byte[]> entries(String... entries) {
+    Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+    for (int i = 0; i < entries.length; i += 2) {
+      result.put(entries[i], (entries[i + 1] == null) ? null : entries[i + 1].getBytes());
+    }
+    return result;
+  }
+  
+  /**
+   * Assert that the given directory has exactly the same files, with the same content, as the
+   * expected directory. Directories are not compared, as empty ones cannot be kept in git.
+   * 
+   * @param expected
+   * @param actual
+   * @throws IOException
+   */
+  public static void assertSameFiles(File expected, File actual) throws IOException {
+    Map<String, File> expectedFiles = listFiles(expected);
+    Map<String, File> actualFiles = listFiles(actual);
+    Assert.assertEquals(expectedFiles.keySet(), actualFiles.keySet());
+    for (Map.Entry<String, File> entry : expectedFiles.entrySet()) {
+      Assert.assertTrue(entry.getKey(), Arrays.equals(FileUtils.readFileToByteArray(
+          entry.getValue()), FileUtils.readFileToByteArray(actualFiles.get(entry.getKey()))));
+    }
+  }
+  
+  private static Map<String, File> listFiles(File dir) {
+    Map<String, File> result = new TreeMap<String, File>();
+    String root = dir.getAbsolutePath();
+    for (File f : FileUtils.listFiles(dir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+      result.put(f.getAbsolutePath().substring(root.length() + 1)
+          .replace(File.separatorChar, '/'), f);
+    }
+    return result;
+  }
+  
+  private static TarArchiveOutputStream createTar(File file) throws IOException {
+    TarArchiveOutputStream tos = new TarArchiveOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)));
+    tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+    return tos;
+  }
+}
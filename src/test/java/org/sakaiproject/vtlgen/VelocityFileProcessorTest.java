@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.api.ResourceLimits;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the rendering of templates, both those that only substitute plain references and
+ * those that need the full Velocity engine.
+ */
+public class VelocityFileProcessorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testPlainSubstitution() throws Exception {
+    Assert.assertEquals("app in org.example", render("$artifactId in ${groupId}"));
+    Assert.assertEquals("no references", render("no references"));
+    Assert.assertEquals("", render(""));
+  }
+
+  @Test
+  public void testMissingReferences() throws Exception {
+    Assert.assertEquals("$missing and ${missing}", render("$missing and ${missing}"));
+    Assert.assertEquals("[]", render("[$!missing]"));
+    Assert.assertEquals("[]", render("[$!{missing}]"));
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    Assert.assertEquals("$artifactId", render("\\$artifactId"));
+    Assert.assertEquals("\\app", render("\\\\$artifactId"));
+    Assert.assertEquals("$ 5 $$ $.", render("$ 5 $$ $."));
+  }
+
+  @Test
+  public void testDirectives() throws Exception {
+    Assert.assertEquals("yes", render("#if($artifactId == 'app')yes#{else}no#end"));
+    Assert.assertEquals("123", render("#foreach($i in [1..3])$i#end"));
+    Assert.assertEquals("a", render("#set($x = 'a')$x"));
+    Assert.assertEquals("app", render("## comment\n$artifactId#* block *#"));
+  }
+
+  @Test
+  public void testRepeatedRenderIsStable() throws Exception {
+    String template = "$artifactId/$groupId";
+    Assert.assertEquals(render(template), render(template));
+    Map<String, Object> other = context();
+    other.put("artifactId", "other");
+    Assert.assertEquals("other/org.example", render(template, other));
+  }
+
+  @Test
+  public void testRenderCacheTellsTypesApart() throws Exception {
+    String template = "#if($flag)T#{else}F#end";
+    Map<String, Object> context = context();
+    context.put("flag", Boolean.FALSE);
+    Assert.assertEquals("F", render(template, context));
+    context.put("flag", "false");
+    Assert.assertEquals("T", render(template, context));
+    context.put("flag", Boolean.FALSE);
+    Assert.assertEquals("F", render(template, context));
+  }
+
+  @Test(timeout = 10000)
+  public void testDeadlineWithoutOutput() throws Exception {
+    // nothing is written, so only the context can notice the deadline has passed
+    ResourceLimits limits = new ResourceLimits(0, 0, 0, 1000, 0, 0);
+    assertRejected("#foreach($i in [1..3000])#foreach($j in [1..3000])#set($x = $j)#end#end",
+        limits, "ms");
+  }
+
+  @Test
+  public void testMaxLoopIterations() throws Exception {
+    ResourceLimits limits = new ResourceLimits(0, 0, 0, 0, 0, 1000);
+    Assert.assertEquals(1000, render("#foreach($i in [1..1000])x#end", limits).length());
+    assertRejected("#foreach($i in [1..100])#foreach($j in [1..100])#set($x = $j)#end#end", limits,
+        "iterations");
+  }
+
+  @Test
+  public void testMaxRangeSize() throws Exception {
+    ResourceLimits limits = new ResourceLimits(0, 0, 0, 0, 0, 1000);
+    Assert.assertEquals("3", render("#set($r = [3..1])$r.size()", limits));
+    assertRejected("#set($r = [1..2000000000])", limits, "range");
+    assertRejected("#set($n = 2000000000)#foreach($i in [$n..1])#set($x = $i)#end", limits, "range");
+  }
+
+  @Test
+  public void testRenderCacheDirIsPruned() throws IOException {
+    File dir = tmp.newFolder("render-cache");
+    long now = System.currentTimeMillis();
+    File unused = touch(new File(dir, "unused"), 0, now - 40L * 24 * 60 * 60 * 1000);
+    File older = touch(new File(dir, "older"), 40 * 1024 * 1024, now - 2000);
+    File newer = touch(new File(dir, "newer"), 40 * 1024 * 1024, now - 1000);
+    
+    VelocityFileProcessor.pruneRenderCacheDir(dir);
+    Assert.assertFalse(unused.exists());
+    Assert.assertFalse(older.exists());
+    Assert.assertTrue(newer.exists());
+  }
+
+  private static File touch(File file, long length, long lastModified) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+    file.setLastModified(lastModified);
+    return file;
+  }
+
+  private static void assertRejected(String template, ResourceLimits limits, String reason)
+      throws UnsupportedEncodingException {
+    try {
+      render(template, limits);
+      Assert.fail("The template should have been stopped");
+    } catch (RuntimeException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains(reason));
+    }
+  }
+
+  private static String render(String template, ResourceLimits limits)
+      throws UnsupportedEncodingException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new VelocityFileProcessor(limits).processFile(new ByteArrayInputStream(
+        template.getBytes("UTF-8")), out, context());
+    return out.toString("UTF-8");
+  }
+
+  private static String render(String template) throws UnsupportedEncodingException {
+    return render(template, context());
+  }
+
+  private static String render(String template, Map<String, Object> context)
+      throws UnsupportedEncodingException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new VelocityFileProcessor().processFile(new ByteArrayInputStream(template.getBytes("UTF-8")),
+        out, context);
+    return out.toString("UTF-8");
+  }
+
+  private static Map<String, Object> context() {
+    Map<String, Object> ctx = new HashMap<String, Object>();
+    ctx.put("artifactId", "app");
+    ctx.put("groupId", "org.example");
+    return ctx;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.TestPackages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Tests that a delta turns its base package into exactly its target package, and nothing else.
+ */
+public class PackageDeltaTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testApply() throws IOException {
+    File base = TestPackages.writeTar(tmp.newFile("base.tar"), TestPackages.entries(
+        "a/", null, "a/same.txt", "same", "a/changed.txt", "old", "removed.txt", "gone"));
+    File target = TestPackages.writeTar(tmp.newFile("target.tar"), TestPackages.entries(
+        "a/", null, "a/same.txt", "same", "a/changed.txt", "new", "added.txt", "added"));
+    String baseDigest = digest(base);
+    String targetDigest = digest(target);
+    
+    File delta = tmp.newFile("delta.tar");
+    PackageDelta.create(base, baseDigest, target, targetDigest, delta);
+    
+    File output = tmp.newFile("output.tar");
+    Assert.assertEquals(targetDigest, apply(base, baseDigest, delta, output));
+    Assert.assertTrue(Arrays.equals(FileUtils.readFileToByteArray(target),
+        FileUtils.readFileToByteArray(output)));
+  }
+
+  @Test
+  public void testUnchangedEntriesAreCopied() throws IOException {
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      large.append("line ").append(i).append('\n');
+    }
+    File base = TestPackages.writeTar(tmp.newFile("base.tar"), TestPackages.entries(
+        "large.txt", large.toString(), "small.txt", "old"));
+    File target = TestPackages.writeTar(tmp.newFile("target.tar"), TestPackages.entries(
+        "added.txt", "added", "large.txt", large.toString(), "small.txt", "new"));
+    File delta = tmp.newFile("delta.bin");
+    PackageDelta.create(base, digest(base), target, digest(target), delta);
+    Assert.assertTrue(delta.length() < target.length() / 10);
+    
+    File output = tmp.newFile("output.tar");
+    Assert.assertEquals(digest(target), apply(base, digest(base), delta, output));
+  }
+
+  @Test
+  public void testWrongTargetIsRejected() throws IOException {
+    File base = TestPackages.writeTar(tmp.newFile("base.tar"), TestPackages.entries(
+        "a.txt", "a"));
+    File target = TestPackages.writeTar(tmp.newFile("target.tar"), TestPackages.entries(
+        "a.txt", "b"));
+    File evil = TestPackages.writeTar(tmp.newFile("evil.tar"), TestPackages.entries(
+        "a.txt", "PWNED"));
+    
+    // the delta claims to produce the target, but produces something else
+    File delta = tmp.newFile("delta.bin");
+    PackageDelta.create(base, digest(base), evil, digest(target), delta);
+    try {
+      apply(base, digest(base), delta, tmp.newFile("output.tar"));
+      Assert.fail("The delta should have been rejected");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains(digest(evil)));
+    }
+  }
+
+  @Test
+  public void testCopyOutsideOfBaseIsRejected() throws IOException {
+    File base = TestPackages.writeTar(tmp.newFile("base.tar"), TestPackages.entries(
+        "a.txt", "a"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write((PackageDelta.MAGIC + "\n").getBytes("UTF-8"));
+    out.writeUTF(digest(base));
+    out.writeUTF(digest(base));
+    out.writeLong(base.length());
+    out.writeByte(1);
+    out.writeLong(base.length() - 10);
+    out.writeInt((int) base.length());
+    out.writeByte(0);
+    
+    try {
+      PackageDelta.apply(base, digest(base), new ByteArrayInputStream(bytes.toByteArray()),
+          tmp.newFile("output.tar"), ResourceLimits.defaults());
+      Assert.fail("The delta should have been rejected");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("outside"));
+    }
+  }
+
+  @Test
+  public void testWrongBaseIsRejected() throws IOException {
+    File base = TestPackages.writeTar(tmp.newFile("base.tar"), TestPackages.entries(
+        "a.txt", "a"));
+    File target = TestPackages.writeTar(tmp.newFile("target.tar"), TestPackages.entries(
+        "a.txt", "b"));
+    File delta = tmp.newFile("delta.tar");
+    PackageDelta.create(base, digest(base), target, digest(target), delta);
+    
+    try {
+      apply(base, digest(target), delta, tmp.newFile("output.tar"));
+      Assert.fail("The delta should not apply to another base");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testGarbageIsRejected() throws IOException {
+    File base = TestPackages.writeTar(tmp.newFile("base.tar"), TestPackages.entries(
+        "a.txt", "a"));
+    try {
+      PackageDelta.apply(base, digest(base), new ByteArrayInputStream("garbage".getBytes()),
+          tmp.newFile("output.tar"), ResourceLimits.defaults());
+      Assert.fail("The delta should have been rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private static String apply(File base, String baseDigest, File delta, File output)
+      throws IOException {
+    InputStream in = new FileInputStream(delta);
+    try {
+      return PackageDelta.apply(base, baseDigest, in, output, ResourceLimits.defaults());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String digest(File file) throws IOException {
+    return PackageUtil.toHex(PackageUtil.sha256().digest(FileUtils.readFileToByteArray(file)));
+  }
+}
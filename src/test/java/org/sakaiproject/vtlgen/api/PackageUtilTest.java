@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.vtlgen.TestPackages;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Tests that extraction keeps packages inside their target directory and within their limits.
+ */
+public class PackageUtilTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testUntar() throws IOException {
+    File pkg = TestPackages.writeTar(tmp.newFile("pkg.tar"), TestPackages.entries(
+        "a/", null, "a/b.txt", "hello", "c.txt", ""));
+    File target = tmp.newFolder("target");
+    Map<String, String> digests = PackageUtil.untar(pkg.getAbsolutePath(),
+        target.getAbsolutePath());
+    
+    Assert.assertEquals("hello", FileUtils.readFileToString(new File(target, "a/b.txt")));
+    Assert.assertEquals(0, new File(target, "c.txt").length());
+    Assert.assertEquals(2, digests.size());
+    Assert.assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+        digests.get("a/b.txt"));
+    Assert.assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+        digests.get("c.txt"));
+  }
+
+  @Test
+  public void testParentTraversalIsRejected() throws IOException {
+    assertRejected(TestPackages.entries("../escape.txt", "x"), ResourceLimits.defaults());
+    assertRejected(TestPackages.entries("a/../../escape.txt", "x"), ResourceLimits.defaults());
+    Assert.assertFalse(new File(tmp.getRoot(), "escape.txt").exists());
+  }
+
+  @Test
+  public void testAbsolutePathStaysInTarget() throws IOException {
+    File pkg = TestPackages.writeTar(tmp.newFile("abs.tar"), TestPackages.entries(
+        "/abs.txt", "x"));
+    File target = tmp.newFolder("target");
+    PackageUtil.untar(pkg.getAbsolutePath(), target.getAbsolutePath());
+    Assert.assertTrue(new File(target, "abs.txt").isFile());
+  }
+
+  @Test
+  public void testLinksAreRejected() throws IOException {
+    File pkg = tmp.newFile("link.tar");
+    TarArchiveOutputStream tos = new TarArchiveOutputStream(new FileOutputStream(pkg));
+    try {
+      TarArchiveEntry entry = new TarArchiveEntry("passwd", TarArchiveEntry.LF_SYMLINK);
+      entry.setLinkName("/etc/passwd");
+      tos.putArchiveEntry(entry);
+      tos.closeArchiveEntry();
+      tos.finish();
+    } finally {
+      IOUtils.closeQuietly(tos);
+    }
+    
+    try {
+      PackageUtil.untar(pkg.getAbsolutePath(), tmp.newFolder("target").getAbsolutePath());
+      Assert.fail("The link should have been rejected");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("link"));
+    }
+  }
+
+  @Test
+  public void testMaxEntries() throws IOException {
+    assertRejected(TestPackages.entries("a", "1", "b", "2", "c", "3"),
+        new ResourceLimits(2, 0, 0, 0, 0));
+  }
+
+  @Test
+  public void testMaxDepth() throws IOException {
+    assertRejected(TestPackages.entries("a/b/c/d.txt", "x"), new ResourceLimits(0, 0, 3, 0, 0));
+  }
+
+  @Test
+  public void testMaxExpandedBytes() throws IOException {
+    assertRejected(TestPackages.entries("a", "12345", "b", "67890"),
+        new ResourceLimits(0, 8, 0, 0, 0));
+  }
+
+  private void assertRejected(Map<String, byte[]> entries, ResourceLimits limits)
+      throws IOException {
+    File pkg = TestPackages.writeTar(File.createTempFile("pkg", ".tar", tmp.getRoot()), entries);
+    File target = new File(tmp.getRoot(), "target-" + pkg.getName());
+    target.mkdirs();
+    try {
+      PackageUtil.untar(pkg.getAbsolutePath(), target.getAbsolutePath(), limits);
+      Assert.fail("The package should have been rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.vtlgen.api;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+/**
+ * Tests how scaffold listeners are found, and that the Flight Recorder listener records the
+ * events where the JVM has it.
+ */
+public class ScaffoldEventsTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testListenerByName() {
+    List<ScaffoldListener> listeners = ScaffoldEvents.findListeners(
+        RecordingListener.class.getName() + ", none", getClass().getClassLoader());
+    Assert.assertEquals(1, listeners.size());
+    Assert.assertTrue(listeners.get(0) instanceof RecordingListener);
+    
+    Assert.assertTrue(ScaffoldEvents.findListeners(ScaffoldEvents.LISTENER_NONE,
+        getClass().getClassLoader()).isEmpty());
+    Assert.assertTrue(ScaffoldEvents.findListeners("no.such.Listener",
+        getClass().getClassLoader()).isEmpty());
+  }
+
+  @Test
+  public void testListenerAsService() throws Exception {
+    File services = tmp.newFolder("services");
+    FileUtils.writeStringToFile(new File(services, "META-INF/services/"
+        + ScaffoldListener.class.getName()), RecordingListener.class.getName() + "\n");
+    ClassLoader loader = new URLClassLoader(new URL[] { services.toURI().toURL() },
+        getClass().getClassLoader());
+    
+    boolean found = false;
+    for (ScaffoldListener listener : ScaffoldEvents.findListeners(null, loader)) {
+      found |= listener instanceof RecordingListener;
+    }
+    Assert.assertTrue(found);
+  }
+
+  @Test
+  public void testFlightRecording() throws Exception {
+    Class<?> recordingClass = null;
+    try {
+      recordingClass = Class.forName("jdk.jfr.Recording");
+    } catch (ClassNotFoundException e) {
+      Assume.assumeNoException(e);
+    }
+    ScaffoldListener listener = JfrScaffoldListener.create();
+    Assert.assertNotNull(listener);
+    
+    Object recording = recordingClass.newInstance();
+    recordingClass.getMethod("enable", String.class).invoke(recording,
+        "org.sakaiproject.vtlgen.TemplateRendered");
+    recordingClass.getMethod("start").invoke(recording);
+    Object state = listener.begin(ScaffoldListener.Phase.TEMPLATE_RENDERED);
+    Assert.assertNotNull(state);
+    Thread.sleep(5);
+    listener.templateRendered(state, "0123abcd", 42, true, 0);
+    recordingClass.getMethod("stop").invoke(recording);
+    
+    Class<?> pathClass = Class.forName("java.nio.file.Path");
+    Object path = File.class.getMethod("toPath").invoke(tmp.newFile("run.jfr"));
+    recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+    recordingClass.getMethod("close").invoke(recording);
+    List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod(
+        "readAllEvents", pathClass).invoke(null, path);
+    
+    Object rendered = null;
+    for (Object event : events) {
+      Object type = event.getClass().getMethod("getEventType").invoke(event);
+      if ("org.sakaiproject.vtlgen.TemplateRendered".equals(type.getClass().getMethod("getName")
+          .invoke(type))) {
+        rendered = event;
+      }
+    }
+    Assert.assertNotNull(rendered);
+    Method getValue = rendered.getClass().getMethod("getValue", String.class);
+    Assert.assertEquals("0123abcd", getValue.invoke(rendered, "templateDigest"));
+    Assert.assertEquals(42L, getValue.invoke(rendered, "bytes"));
+    Assert.assertEquals(Boolean.TRUE, getValue.invoke(rendered, "cached"));
+    Object duration = rendered.getClass().getMethod("getDuration").invoke(rendered);
+    long nanos = ((Long) duration.getClass().getMethod("toNanos").invoke(duration)).longValue();
+    Assert.assertTrue(String.valueOf(nanos), nanos >= 5000000L);
+  }
+
+  public static class RecordingListener implements ScaffoldListener {
+    
+    public Object begin(Phase phase) {
+      return null;
+    }
+    
+    public void packageGenerated(Object state, String packageUrl, String digest, int generated,
+        long nanos) {
+    }
+    
+    public void entryExtracted(Object state, String packageName, String entryName, long bytes,
+        long nanos) {
+    }
+    
+    public void templateRendered(Object state, String templateDigest, long bytes,
+        boolean cached, long nanos) {
+    }
+    
+    public void fileProcessed(Object state, String source, String target, long nanos) {
+    }
+  }
+}